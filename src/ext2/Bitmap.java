@@ -0,0 +1,229 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//位示图, 用 AtomicLongArray 存储, 一次检查64位
+//位的编号和磁盘上一样从1开始, 第 k 位在第 (k-1)/8 个字节中, 字节内从高位到低位排列,
+//按大端序把8个字节拼成一个 long, 所以第 k 位就是第 (k-1)/64 个字的第 63-(k-1)%64 位(从最高位数起), 与磁盘上的字节顺序一致
+//所有修改都用 CAS 完成, 多个线程同时申请时不会拿到同一位, 也不需要加锁
+public class Bitmap {
+
+    private final AtomicLongArray WORDS;
+    private final int SIZE;//总位数
+    private final int BLOCK_BITS;//磁盘上一块位示图的位数, 用来记录哪些块被修改过
+    private final AtomicLongArray DIRTY;//修改过还没写回磁盘的位示图块, 块号从0开始, 每块一位
+    private final AtomicInteger THREADS = new AtomicInteger();//给用到这个位示图的每个线程分配不同的起始位置
+    //每个线程自己的分配游标: 下一次从这里开始找空闲位, 避免每次都从第1位扫描;
+    //每个位示图第一个用到的线程从头开始, 后面的线程按黄金分割依次错开, 同时申请时不会挤在同一个字上
+    private final ThreadLocal<int[]> CURSOR = ThreadLocal.withInitial(() -> new int[]{
+            (int) (((THREADS.getAndIncrement() * 0x9E3779B97F4A7C15L) >>> 32) * size() >>> 32) + 1});
+
+    public Bitmap(int size, int blockBits) {
+        SIZE = size;
+        BLOCK_BITS = blockBits;
+        WORDS = new AtomicLongArray((size + 63) >>> 6);
+        DIRTY = new AtomicLongArray(((size + blockBits - 1) / blockBits + 63) >>> 6);
+    }
+
+    public int size() {
+        return SIZE;
+    }
+
+    //第 index 位在字中的掩码
+    private static long mask(int index) {
+        return 1L << (63 - ((index - 1) & 63));
+    }
+
+    private static int word(int index) {
+        return (index - 1) >>> 6;
+    }
+
+    //第 index 位是否被占用
+    public boolean get(int index) {
+        return (WORDS.get(word(index)) & mask(index)) != 0;
+    }
+
+    public void set(int index) {
+        or(WORDS, word(index), mask(index));
+        markDirty(index);
+    }
+
+    public void clear(int index) {
+        release(index);
+    }
+
+    //把空闲的第 index 位置为占用, 已经被别的线程占用时返回 false
+    public boolean claim(int index) {
+        final int w = word(index);
+        final long mask = mask(index);
+        long old;
+        do {
+            old = WORDS.get(w);
+            if ((old & mask) != 0) return false;
+        } while (!WORDS.compareAndSet(w, old, old | mask));
+        markDirty(index);
+        return true;
+    }
+
+    //把第 index 位置为空闲, 原来是占用的返回 true
+    public boolean release(int index) {
+        final int w = word(index);
+        final long mask = mask(index);
+        long old;
+        do {
+            old = WORDS.get(w);
+            if ((old & mask) == 0) return false;
+        } while (!WORDS.compareAndSet(w, old, old & ~mask));
+        markDirty(index);
+        return true;
+    }
+
+    private static void or(AtomicLongArray array, int w, long bits) {
+        long old;
+        do {
+            old = array.get(w);
+            if ((old | bits) == old) return;
+        } while (!array.compareAndSet(w, old, old | bits));
+    }
+
+    private void markDirty(int index) {
+        int block = (index - 1) / BLOCK_BITS;
+        or(DIRTY, block >>> 6, 1L << (block & 63));
+    }
+
+    //把 fromIndex 到 toIndex(都包含)的位全部置为占用
+    public void set(int fromIndex, int toIndex) {
+        for (int index = fromIndex; index <= toIndex; ) {
+            int w = word(index);
+            int last = Math.min(toIndex, (w + 1) << 6);//本字中最后一位
+            //从 index 到 last 的位: 左边去掉 (index-1)&63 位, 右边去掉 63-((last-1)&63) 位
+            long bits = (-1L >>> ((index - 1) & 63)) & (-1L << (63 - ((last - 1) & 63)));
+            or(WORDS, w, bits);
+            index = last + 1;
+        }
+        if (fromIndex <= toIndex) {
+            for (int block = (fromIndex - 1) / BLOCK_BITS; block <= (toIndex - 1) / BLOCK_BITS; block++) {
+                markDirty(block * BLOCK_BITS + 1);
+            }
+        }
+    }
+
+    //在 fromIndex 到 toIndex(都包含)之间找第一个空闲位, 没有返回0
+    public int nextClearBit(int fromIndex, int toIndex) {
+        if (fromIndex > toIndex) return 0;
+        int w = word(fromIndex);
+        long word = ~WORDS.get(w) & (-1L >>> ((fromIndex - 1) & 63));//把 fromIndex 之前的位去掉
+        final int lastWord = word(toIndex);
+        while (true) {
+            if (word != 0) {//~word != 0 说明这个字里有空闲位
+                int index = (w << 6) + Long.numberOfLeadingZeros(word) + 1;
+                return index <= toIndex ? index : 0;
+            }
+            if (++w > lastWord) return 0;
+            word = ~WORDS.get(w);
+        }
+    }
+
+    //在 fromIndex 到 toIndex(都包含)之间找第一个占用位, 没有返回0
+    public int nextSetBit(int fromIndex, int toIndex) {
+        if (fromIndex > toIndex) return 0;
+        int w = word(fromIndex);
+        long word = WORDS.get(w) & (-1L >>> ((fromIndex - 1) & 63));
+        final int lastWord = word(toIndex);
+        while (true) {
+            if (word != 0) {
+                int index = (w << 6) + Long.numberOfLeadingZeros(word) + 1;
+                return index <= toIndex ? index : 0;
+            }
+            if (++w > lastWord) return 0;
+            word = WORDS.get(w);
+        }
+    }
+
+    //在 fromIndex 到 toIndex(都包含)之间申请一个空闲位并置为占用, 没有返回0
+    //从本线程的游标处开始找, 找到末尾后再从 fromIndex 找到游标处, 连续分配时平均 O(1)
+    //找到的空闲位用 CAS 占用, 被别的线程抢先时从下一位接着找
+    public int allocate(int fromIndex, int toIndex) {
+        final int cursor[] = CURSOR.get();
+        int start = (cursor[0] > fromIndex && cursor[0] <= toIndex) ? cursor[0] : fromIndex;
+        int index = claimNext(start, toIndex);
+        if (index == 0 && start > fromIndex) {
+            index = claimNext(fromIndex, start - 1);
+        }
+        if (index != 0) {
+            cursor[0] = index + 1;
+        }
+        return index;
+    }
+
+    private int claimNext(int fromIndex, int toIndex) {
+        for (int index = nextClearBit(fromIndex, toIndex); index != 0; index = nextClearBit(index, toIndex)) {
+            if (claim(index)) return index;
+        }
+        return 0;
+    }
+
+    //统计 fromIndex 到 toIndex(都包含)之间占用的位数
+    public int count(int fromIndex, int toIndex) {
+        int count = 0;
+        for (int index = fromIndex; index <= toIndex; ) {
+            int w = word(index);
+            int last = Math.min(toIndex, (w + 1) << 6);
+            long bits = (-1L >>> ((index - 1) & 63)) & (-1L << (63 - ((last - 1) & 63)));
+            count += Long.bitCount(WORDS.get(w) & bits);
+            index = last + 1;
+        }
+        return count;
+    }
+
+    //从 fromBlock 开始下一个修改过的位示图块, 没有返回-1
+    public int nextDirtyBlock(int fromBlock) {
+        for (int w = fromBlock >>> 6; w < DIRTY.length(); w++) {
+            long word = DIRTY.get(w);
+            if (w == fromBlock >>> 6) word &= -1L << (fromBlock & 63);
+            if (word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+        return -1;
+    }
+
+    //清除第 block 块的修改标记, 要在取出这块内容写回之前清除, 这样写回期间别的线程的修改会重新标记
+    public void clearDirty(int block) {
+        final int w = block >>> 6;
+        long old;
+        do {
+            old = DIRTY.get(w);
+        } while (!DIRTY.compareAndSet(w, old, old & ~(1L << (block & 63))));
+    }
+
+    //清除全部修改标记, 只在载入时使用
+    public void clearDirty() {
+        for (int w = 0; w < DIRTY.length(); w++) {
+            DIRTY.set(w, 0);
+        }
+    }
+
+    //从磁盘读到的字节中载入位示图, byteOffset 是这些字节在整个位示图中的位置, 必须是8的倍数
+    public void fromByteArray(byte array[], int byteOffset) {
+        LongBuffer longs = ByteBuffer.wrap(array).asLongBuffer();
+        for (int w = byteOffset >>> 3; longs.hasRemaining(); w++) {
+            WORDS.set(w, longs.get());
+        }
+    }
+
+    //从 byteOffset 开始取 length 个字节, 用于写回磁盘, 都必须是8的倍数
+    public byte[] toByteArray(int byteOffset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        writeTo(buffer, 0, byteOffset, length);
+        return buffer.array();
+    }
+
+    //把从 byteOffset 开始的 length 个字节编码到 buffer 的 offset 处(绝对位置), byteOffset 和 length 必须是8的倍数
+    public void writeTo(ByteBuffer buffer, int offset, int byteOffset, int length) {
+        for (int i = 0; i < length; i += 8) {
+            buffer.putLong(offset + i, WORDS.get((byteOffset + i) >>> 3));
+        }
+    }
+}
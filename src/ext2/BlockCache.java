@@ -0,0 +1,200 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+//块缓冲区缓存, 包在块设备外面, 文件系统的所有读写都先经过这里
+//固定数量的缓存帧(每帧一个块), 用 CLOCK 算法淘汰, 写操作只标记为脏块, 在淘汰/flush/close 时才写回磁盘
+public class BlockCache implements BlockDevice {
+
+    private final BlockDevice DEVICE;//被缓存的设备
+    private final int BLOCK_SIZE;
+    private final int FRAME_COUNT;//缓存帧数量
+
+    private final byte FRAMES[][];//缓存帧数据, 每帧一个块
+    private final int FRAME_BLOCKS[];//每个帧缓存的是哪个块, -1 表示空帧
+    private final boolean REFERENCED[];//CLOCK 引用位, 被访问过置为true, 指针扫过时清除
+    private final boolean DIRTY[];//脏块标记, 修改后还没写回磁盘
+    private final Map<Integer, Integer> INDEX = new HashMap<>();//块号 -> 帧号
+
+    private int hand;//CLOCK 指针
+
+    //统计信息, 用于调整缓存大小
+    private long hits;//命中次数
+    private long misses;//未命中次数(需要读盘)
+    private long evictions;//淘汰次数
+    private long writeBacks;//写回磁盘的块数
+
+    public BlockCache(BlockDevice device, int sizeMB) {
+        DEVICE = device;
+        BLOCK_SIZE = device.getBlockSize();
+        FRAME_COUNT = Math.max(1, (int) ((long) sizeMB * 1024 * 1024 / BLOCK_SIZE));
+        FRAMES = new byte[FRAME_COUNT][];
+        FRAME_BLOCKS = new int[FRAME_COUNT];
+        REFERENCED = new boolean[FRAME_COUNT];
+        DIRTY = new boolean[FRAME_COUNT];
+        Arrays.fill(FRAME_BLOCKS, -1);
+    }
+
+    @Override
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return DEVICE.getSizeBytes();
+    }
+
+    @Override
+    public synchronized void read(long offset, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {//按块拆分, 可能跨越多个块
+            int block = (int) (offset / BLOCK_SIZE);
+            int blockOffset = (int) (offset % BLOCK_SIZE);
+            int len = Math.min(dst.remaining(), BLOCK_SIZE - blockOffset);
+            int frame = getFrame(block, true);
+            dst.put(FRAMES[frame], blockOffset, len);
+            offset += len;
+        }
+    }
+
+    @Override
+    public synchronized void write(long offset, ByteBuffer src) throws IOException {
+        if (src.remaining() >= FRAME_COUNT * (long) BLOCK_SIZE) {
+            //一次写入比整个缓存还大(如格式化), 不经过缓存直接写盘, 免得把缓存全部冲掉
+            writeThrough(offset, src);
+            return;
+        }
+        while (src.hasRemaining()) {
+            int block = (int) (offset / BLOCK_SIZE);
+            int blockOffset = (int) (offset % BLOCK_SIZE);
+            int len = Math.min(src.remaining(), BLOCK_SIZE - blockOffset);
+            int frame = getFrame(block, len != BLOCK_SIZE);//整块覆盖时不需要先读盘
+            src.get(FRAMES[frame], blockOffset, len);
+            DIRTY[frame] = true;
+            offset += len;
+        }
+    }
+
+    @Override
+    public synchronized void setLength(long length) throws IOException {
+        DEVICE.setLength(length);
+    }
+
+    //直接写盘, 先把范围内的缓存帧写回并丢弃, 保证缓存和磁盘一致
+    private void writeThrough(long offset, ByteBuffer src) throws IOException {
+        int first = (int) (offset / BLOCK_SIZE);
+        int last = (int) ((offset + src.remaining() - 1) / BLOCK_SIZE);
+        for (int frame = 0; frame < FRAME_COUNT; frame++) {
+            int block = FRAME_BLOCKS[frame];
+            if (block >= first && block <= last) {
+                writeBack(frame);
+                INDEX.remove(block);
+                FRAME_BLOCKS[frame] = -1;
+                REFERENCED[frame] = false;
+            }
+        }
+        DEVICE.write(offset, src);
+    }
+
+    //获取缓存某个块的帧号, 不在缓存中则淘汰一个帧来装它, load 为true时从磁盘读入块内容
+    private int getFrame(int block, boolean load) throws IOException {
+        Integer cached = INDEX.get(block);
+        if (cached != null) {
+            hits++;
+            REFERENCED[cached] = true;
+            return cached;
+        }
+        misses++;
+        int frame = evict();
+        if (FRAMES[frame] == null) {
+            FRAMES[frame] = new byte[BLOCK_SIZE];
+        }
+        if (load) {
+            DEVICE.readBlock(block, ByteBuffer.wrap(FRAMES[frame]));
+        }
+        FRAME_BLOCKS[frame] = block;
+        REFERENCED[frame] = true;
+        INDEX.put(block, frame);
+        return frame;
+    }
+
+    //CLOCK 淘汰: 指针循环扫描, 引用位为true的清除后跳过, 遇到引用位为false的帧就淘汰它
+    private int evict() throws IOException {
+        while (true) {
+            int frame = hand;
+            hand = (hand + 1) % FRAME_COUNT;
+            if (FRAME_BLOCKS[frame] == -1) {
+                return frame;//空帧直接使用
+            }
+            if (REFERENCED[frame]) {
+                REFERENCED[frame] = false;//给第二次机会
+                continue;
+            }
+            writeBack(frame);
+            INDEX.remove(FRAME_BLOCKS[frame]);
+            FRAME_BLOCKS[frame] = -1;
+            evictions++;
+            return frame;
+        }
+    }
+
+    //脏块写回磁盘
+    private void writeBack(int frame) throws IOException {
+        if (DIRTY[frame]) {
+            DEVICE.writeBlock(FRAME_BLOCKS[frame], ByteBuffer.wrap(FRAMES[frame]));
+            DIRTY[frame] = false;
+            writeBacks++;
+        }
+    }
+
+    //把所有脏块按块号顺序写回磁盘
+    @Override
+    public synchronized void flush() throws IOException {
+        Integer dirtyFrames[] = new Integer[FRAME_COUNT];
+        int count = 0;
+        for (int frame = 0; frame < FRAME_COUNT; frame++) {
+            if (DIRTY[frame]) dirtyFrames[count++] = frame;
+        }
+        Arrays.sort(dirtyFrames, 0, count, (a, b) -> Integer.compare(FRAME_BLOCKS[a], FRAME_BLOCKS[b]));
+        for (int i = 0; i < count; i++) {
+            writeBack(dirtyFrames[i]);
+        }
+        DEVICE.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        DEVICE.close();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    //当前脏块数量
+    public synchronized int getDirtyCount() {
+        int count = 0;
+        for (boolean dirty : DIRTY) {
+            if (dirty) count++;
+        }
+        return count;
+    }
+
+    //缓存统计信息
+    @Override
+    public synchronized String toString() {
+        long total = hits + misses;
+        return String.format("缓存大小: %d 块(%d KB), 已用: %d 块, 脏块: %d%n命中: %d, 未命中: %d, 命中率: %.2f%%, 淘汰: %d, 写回: %d",
+                FRAME_COUNT, FRAME_COUNT * (long) BLOCK_SIZE / 1024, INDEX.size(), getDirtyCount(),
+                hits, misses, total == 0 ? 0.0 : hits * 100.0 / total, evictions, writeBacks);
+    }
+}
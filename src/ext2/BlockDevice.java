@@ -0,0 +1,39 @@
+package ext2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//块设备接口, 文件系统通过它读写磁盘
+//所有读写都带显式偏移量(类似 pread/pwrite), 不依赖共享的文件指针, 因此可以并发访问
+public interface BlockDevice extends Closeable {
+
+    //块大小, 单位字节
+    int getBlockSize();
+
+    //设备总大小, 单位字节
+    long getSizeBytes();
+
+    //从 offset 处读取, 把 dst 剩余空间读满
+    void read(long offset, ByteBuffer dst) throws IOException;
+
+    //从 offset 处写入 src 中剩余的全部字节
+    void write(long offset, ByteBuffer src) throws IOException;
+
+    //设置设备(镜像文件)大小, 扩大时不写入数据, 文件系统支持的话就是稀疏文件
+    void setLength(long length) throws IOException;
+
+    //读取第 block 个块(从0开始, 按设备偏移量计算, 不是数据块号)
+    default void readBlock(int block, ByteBuffer dst) throws IOException {
+        read((long) block * getBlockSize(), dst);
+    }
+
+    //写入第 block 个块
+    default void writeBlock(int block, ByteBuffer src) throws IOException {
+        write((long) block * getBlockSize(), src);
+    }
+
+    //把缓冲中的修改刷到底层存储
+    default void flush() throws IOException {
+    }
+}
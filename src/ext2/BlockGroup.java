@@ -0,0 +1,124 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//块组描述符, 和 ext2 一样把磁盘分成若干个块组, 每个块组有自己的数据块位示图, 节点位示图, 节点表和数据块
+//一个文件的节点和它的数据块尽量放在同一个块组, 减少寻道距离, 不同块组的分配也互不影响
+//块组布局: 数据块位示图 | 节点位示图 | 节点表 | 数据块
+public class BlockGroup {
+
+    public static final int SIZE = 32;//块组描述符在块组描述符表中占用的字节数
+
+    private final int number;//块组号, 从0开始
+    private final int dataBitmapBlock;//本组数据块位示图所在的块(按设备偏移量计算)
+    private final int inodeBitmapBlock;//本组节点位示图所在的块
+    private final int inodeTableBlock;//本组节点表开始的块
+    private final int firstDataBlock;//本组第一个数据块所在的块
+    private final int dataBlockCount;//本组数据块数, 最后一个块组可能比其他的少
+    private final int inodeCount;//本组节点数
+    private final AtomicInteger freeBlocks = new AtomicInteger();//本组空闲数据块数, 多个线程同时申请时原子地加减
+    private final AtomicInteger freeInodes = new AtomicInteger();//本组空闲节点数
+
+    public BlockGroup(int number, int dataBitmapBlock, int inodeBitmapBlock, int inodeTableBlock,
+                      int firstDataBlock, int dataBlockCount, int inodeCount) {
+        this.number = number;
+        this.dataBitmapBlock = dataBitmapBlock;
+        this.inodeBitmapBlock = inodeBitmapBlock;
+        this.inodeTableBlock = inodeTableBlock;
+        this.firstDataBlock = firstDataBlock;
+        this.dataBlockCount = dataBlockCount;
+        this.inodeCount = inodeCount;
+        this.freeBlocks.set(dataBlockCount);
+        this.freeInodes.set(inodeCount);
+    }
+
+    //从块组描述符表中的32个字节还原块组描述符
+    public static BlockGroup fromByteArray(byte array[], int number) {
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        BlockGroup group = new BlockGroup(number, buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                buffer.getInt(), buffer.getInt(), buffer.getInt());
+        group.freeBlocks.set(buffer.getInt());
+        group.freeInodes.set(buffer.getInt());
+        return group;
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        writeTo(buffer, 0);
+        return buffer.array();
+    }
+
+    //把描述符编码到 buffer 的 offset 处(绝对位置)
+    public void writeTo(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset, dataBitmapBlock);
+        buffer.putInt(offset + 4, inodeBitmapBlock);
+        buffer.putInt(offset + 8, inodeTableBlock);
+        buffer.putInt(offset + 12, firstDataBlock);
+        buffer.putInt(offset + 16, dataBlockCount);
+        buffer.putInt(offset + 20, inodeCount);
+        buffer.putInt(offset + 24, freeBlocks.get());
+        buffer.putInt(offset + 28, freeInodes.get());
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public int getDataBitmapBlock() {
+        return dataBitmapBlock;
+    }
+
+    public int getInodeBitmapBlock() {
+        return inodeBitmapBlock;
+    }
+
+    public int getInodeTableBlock() {
+        return inodeTableBlock;
+    }
+
+    public int getFirstDataBlock() {
+        return firstDataBlock;
+    }
+
+    public int getDataBlockCount() {
+        return dataBlockCount;
+    }
+
+    public int getInodeCount() {
+        return inodeCount;
+    }
+
+    public int getFreeBlocks() {
+        return freeBlocks.get();
+    }
+
+    public void setFreeBlocks(int freeBlocks) {
+        this.freeBlocks.set(freeBlocks);
+    }
+
+    //空闲数据块数加上 delta(申请时为负), 返回修改后的值
+    public int addFreeBlocks(int delta) {
+        return freeBlocks.addAndGet(delta);
+    }
+
+    public int getFreeInodes() {
+        return freeInodes.get();
+    }
+
+    public void setFreeInodes(int freeInodes) {
+        this.freeInodes.set(freeInodes);
+    }
+
+    public int addFreeInodes(int delta) {
+        return freeInodes.addAndGet(delta);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("块组 %d: 位示图(数据块): 块 %d, 位示图(节点): 块 %d, 节点表: 块 %d, 数据块开始: 块 %d, " +
+                        "空闲块: %d/%d, 空闲节点: %d/%d",
+                number, dataBitmapBlock, inodeBitmapBlock, inodeTableBlock, firstDataBlock,
+                freeBlocks.get(), dataBlockCount, freeInodes.get(), inodeCount);
+    }
+}
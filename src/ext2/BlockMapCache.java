@@ -0,0 +1,55 @@
+package ext2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//文件的块映射缓存: 节点号 -> 按逻辑块顺序排列的数据块号
+//读文件时不用再逐级读间接块或区段块, 按最近访问顺序淘汰, 总块数不超过 CAPACITY
+//文件的块变了(追加, 删除)时要调用 invalidate
+public class BlockMapCache {
+
+    private final int CAPACITY;//最多缓存的块号个数
+    private final LinkedHashMap<Integer, int[]> MAPS = new LinkedHashMap<>(16, 0.75f, true);//按访问顺序排列
+    private long size;//已缓存的块号个数
+
+    //统计信息
+    private long hits;
+    private long misses;
+
+    public BlockMapCache(int capacity) {
+        CAPACITY = capacity;
+    }
+
+    //节点的块映射, 没有缓存返回 null
+    public synchronized int[] get(int inode) {
+        int blocks[] = MAPS.get(inode);
+        if (blocks == null) misses++;
+        else hits++;
+        return blocks;
+    }
+
+    //缓存节点的块映射, 比整个缓存还大的不缓存
+    public synchronized void put(int inode, int blocks[]) {
+        if (blocks.length > CAPACITY) return;
+        int old[] = MAPS.put(inode, blocks);
+        if (old != null) size -= old.length;
+        size += blocks.length;
+        Iterator<Map.Entry<Integer, int[]>> eldest = MAPS.entrySet().iterator();
+        while (size > CAPACITY && eldest.hasNext()) {//从最久没用的开始淘汰
+            size -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    //节点的块变了, 丢掉它的映射
+    public synchronized void invalidate(int inode) {
+        int old[] = MAPS.remove(inode);
+        if (old != null) size -= old.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("块映射缓存: %d 个文件, %d 个块号, 命中 %d, 未命中 %d", MAPS.size(), size, hits, misses);
+    }
+}
@@ -0,0 +1,66 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//基于内存 ByteBuffer 的块设备, 整个磁盘放在一块(直接)内存中, 不落盘, 适合测试和基准
+//每次读写都复制一个视图来操作, 不修改共享缓冲区的 position, 因此可以并发访问
+public class ByteBufferBlockDevice implements BlockDevice {
+
+    private final ByteBuffer BUFFER;
+    private final int BLOCK_SIZE;
+
+    public ByteBufferBlockDevice(ByteBuffer buffer, int blockSize) {
+        BUFFER = buffer;
+        BLOCK_SIZE = blockSize;
+    }
+
+    //分配一块直接内存作为磁盘
+    public static ByteBufferBlockDevice allocateDirect(int sizeBytes, int blockSize) {
+        return new ByteBufferBlockDevice(ByteBuffer.allocateDirect(sizeBytes), blockSize);
+    }
+
+    @Override
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return BUFFER.capacity();
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        ByteBuffer view = view(offset, dst.remaining());
+        dst.put(view);
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        ByteBuffer view = view(offset, src.remaining());
+        view.put(src);
+    }
+
+    //内存磁盘大小在分配时已经固定
+    @Override
+    public void setLength(long length) throws IOException {
+        if (length > BUFFER.capacity()) {
+            throw new IOException("内存磁盘大小固定为 " + BUFFER.capacity() + " 字节");
+        }
+    }
+
+    private ByteBuffer view(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > BUFFER.capacity()) {
+            throw new IOException("偏移量超出磁盘范围: " + offset);
+        }
+        ByteBuffer view = BUFFER.duplicate();
+        view.limit((int) offset + length);
+        view.position((int) offset);
+        return view;
+    }
+
+    @Override
+    public void close() {
+    }
+}
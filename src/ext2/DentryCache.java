@@ -0,0 +1,67 @@
+package ext2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+//目录项缓存(和 Linux 的 dentry cache 一样): (父目录节点号, 文件名) -> 目录项, 解析路径时不用再读目录块
+//也缓存不存在的文件名(NEGATIVE), 按最近访问顺序淘汰, 最多 CAPACITY 项
+//目录中添加或删除目录项时要调用 invalidate, 删除目录时调用 invalidateDirectory
+public class DentryCache {
+
+    //表示目录中没有这个文件名
+    public static final DirectoryEntry NEGATIVE = new DirectoryEntry(0, (byte) 0, "");
+
+    private final int CAPACITY;
+    private final LinkedHashMap<String, DirectoryEntry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);//按访问顺序排列
+
+    //统计信息
+    private long hits;
+    private long misses;
+
+    public DentryCache(int capacity) {
+        CAPACITY = capacity;
+    }
+
+    //文件名里不会有 /, 用它隔开父目录节点号和文件名
+    private static String key(int parent, String name) {
+        return parent + "/" + name;
+    }
+
+    //目录 parent 中名为 name 的目录项, 没有缓存返回 null, 缓存了不存在时返回 NEGATIVE
+    public synchronized DirectoryEntry get(int parent, String name) {
+        DirectoryEntry entry = ENTRIES.get(key(parent, name));
+        if (entry == null) misses++;
+        else hits++;
+        return entry;
+    }
+
+    //缓存查找结果, entry 为 null 表示不存在
+    public synchronized void put(int parent, String name, DirectoryEntry entry) {
+        ENTRIES.put(key(parent, name), entry == null ? NEGATIVE : entry);
+        Iterator<String> eldest = ENTRIES.keySet().iterator();
+        while (ENTRIES.size() > CAPACITY && eldest.hasNext()) {//从最久没用的开始淘汰
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    //目录 parent 中添加或删除了名为 name 的目录项
+    public synchronized void invalidate(int parent, String name) {
+        ENTRIES.remove(key(parent, name));
+    }
+
+    //目录被删除了, 丢掉它下面的全部目录项(节点号以后可能给新目录用)
+    public synchronized void invalidateDirectory(int parent) {
+        String prefix = parent + "/";
+        ENTRIES.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public synchronized void clear() {
+        ENTRIES.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("目录项缓存: %d 项, 命中 %d, 未命中 %d", ENTRIES.size(), hits, misses);
+    }
+}
@@ -1,18 +1,42 @@
 package ext2;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 //目录类 directory = new list<DirectoryBlock>(),
 //一个节点可以对应多个目录项（如硬链接），但一个目录项只能对应一个节点
 //一个目录可以有多个目录块，一个目录块里可写多个目录项
+//有哈希索引的目录(index 不为 null)只在文件名的哈希值对应的叶子块里找
 public class Directory extends ArrayList<DirectoryBlock> {
 
+    private DirectoryIndex index;//哈希索引, 普通目录为 null
+    private int freeSpace[];//空闲空间表: 各目录块中最大的空隙, 添加目录项时按需建立, 只对普通目录有用
+
     public Directory() {
         super();
     }
 
+    public DirectoryIndex getIndex() {
+        return index;
+    }
+
+    public void setIndex(DirectoryIndex index) {
+        this.index = index;
+    }
+
+    //有索引时名为 name 的目录项应该在的叶子块
+    public DirectoryBlock getLeaf(String name) {
+        return get(index.findLeaf(DirectoryIndex.hash(name)));
+    }
+
+    //有索引时按文件名找目录项要看的块: . 和 .. 在第0块, 其余的在叶子块
+    private DirectoryBlock getSearchBlock(String name) {
+        return DirectoryIndex.inRoot(name) ? get(0) : getLeaf(name);
+    }
+
     //找目录下是否有包含 name 的目录项, 新建目录时用来判断是否重名
     public DirectoryEntry findEntry(String name) {
+        if (index != null) return getSearchBlock(name).findEntry(name);
         for (DirectoryBlock block : this) {//遍历所有目录块
             for (DirectoryEntry dirEntry : block) {//遍历每个块中的目录项
                 if (dirEntry.getFilename().equals(name)) {
@@ -25,6 +49,10 @@ public class Directory extends ArrayList<DirectoryBlock> {
 
     //找目录下是否有包含 name 的目录块
     public DirectoryBlock getBlockContaining(String name) {
+        if (index != null) {
+            DirectoryBlock block = getSearchBlock(name);
+            return block.contains(findEntry(name)) ? block : null;
+        }
         for (DirectoryBlock block : this) {//遍历目录下的每个块
             for (DirectoryEntry entry : block) {//遍历块中的每个目录项
                 if (entry.getFilename().equals(name)) {
@@ -35,6 +63,32 @@ public class Directory extends ArrayList<DirectoryBlock> {
         return null;
     }
 
+    //找一个有空隙放得下长度为 length 的目录项的目录块, 从前往后找, 没有返回 null
+    public DirectoryBlock findBlockWithSpace(int length) {
+        int known = freeSpace == null ? 0 : Math.min(freeSpace.length, size());
+        if (known != size()) {//目录加了块, 只计算新的块
+            freeSpace = freeSpace == null ? new int[size()] : Arrays.copyOf(freeSpace, size());
+            for (int i = known; i < size(); i++) {
+                freeSpace[i] = get(i).getLargestGap();
+            }
+        }
+        for (int i = 0; i < freeSpace.length; i++) {
+            if (freeSpace[i] >= length) return get(i);
+        }
+        return null;
+    }
+
+    //目录块中添加或删除了目录项, 更新空闲空间表
+    public void updateFreeSpace(DirectoryBlock block) {
+        if (freeSpace == null) return;
+        for (int i = 0; i < freeSpace.length; i++) {
+            if (get(i) == block) {
+                freeSpace[i] = block.getLargestGap();
+                return;
+            }
+        }
+    }
+
     //返回本目录的节点号
     public int getInode() {
         DirectoryBlock firstBlock = this.get(0);//目录的第一个块
@@ -6,14 +6,17 @@ import java.util.ArrayList;
 public class DirectoryBlock extends ArrayList<DirectoryEntry> {
 
     private final int BLOCK;//块号
+    private final int BLOCK_SIZE;//块大小
+    private int firstOffset;//第一个目录项的偏移量, 块开头有跳过的空目录项时不为0
 
-    public DirectoryBlock(int block) {
+    public DirectoryBlock(int block, int blockSize) {
         this.BLOCK = block;
+        this.BLOCK_SIZE = blockSize;
     }
 
     public void addEntry(DirectoryEntry dirEntry) {
         if (this.isEmpty()) {//判断块中有没有目录项
-            dirEntry.setRecLen((short) (FileSystem.BLOCK_SIZE));//让第一个目录项的记录长度设为块大小，读取时才知道里面只有一个目录项
+            dirEntry.setRecLen((short) BLOCK_SIZE);//让第一个目录项的记录长度设为块大小，读取时才知道里面只有一个目录项
             this.add(dirEntry);
         } else {
             int remaining = getRemainingLength();//获取块剩余的长度
@@ -28,18 +31,49 @@ public class DirectoryBlock extends ArrayList<DirectoryEntry> {
     }
 
 
+    //块中名为 name 的目录项, 没有返回 null
+    public DirectoryEntry findEntry(String name) {
+        for (DirectoryEntry entry : this) {
+            if (entry.getFilename().equals(name)) return entry;
+        }
+        return null;
+    }
+
     //返回从0到所给位置的所有记录长度的和
     public int getOffset(int index) {//这个索引代表list中目录项的索引
-        if (index == 0 || index >= this.size()) {
+        if (index >= this.size()) {
             return 0;
         }
-        int recLen = 0;
+        int recLen = firstOffset;
         for (int i = 0; i < index; i++) {
             recLen += this.get(i).getRecLen();
         }
         return recLen;
     }
 
+    //块开头空着的长度(删除第一个目录项后留下的空隙), 没有目录项时整块都空着
+    public int getLeadingGap() {
+        return isEmpty() ? BLOCK_SIZE : firstOffset;
+    }
+
+    //长度为 length 的目录项能放在哪里: 放在第 k 个目录项多出的记录长度里返回 k, 放在块开头返回 -1, 放不下返回 -2
+    public int findSlot(int length) {
+        if (getLeadingGap() >= length) return -1;
+        for (int k = 0; k < size(); k++) {
+            if (get(k).getRecLen() - get(k).getIdealLen() >= length) return k;
+        }
+        return -2;
+    }
+
+    //块中最大的空隙, 能放下不超过这个长度的目录项
+    public int getLargestGap() {
+        int gap = getLeadingGap();
+        for (DirectoryEntry entry : this) {
+            gap = Math.max(gap, entry.getRecLen() - entry.getIdealLen());
+        }
+        return gap;
+    }
+
     //返回剩余的长度(达到4KB, 即还剩多少字节占满这个块)
     public int getRemainingLength() {
         DirectoryEntry lastEntry = this.getLastEntry();//获取块中的最后一个目录项
@@ -49,9 +83,18 @@ public class DirectoryBlock extends ArrayList<DirectoryEntry> {
         //最后一个目录项的长度总是等于这个块上次剩余的长度，上次剩余长度-真实长度 得到本次剩余长度
     }
 
+    //紧凑排列时(有索引的目录的叶子块)还能放下的长度, 块中没有目录项时也可以用
+    public int getFreeLength() {
+        int length = 0;
+        for (DirectoryEntry entry : this) {
+            length += entry.getIdealLen();
+        }
+        return BLOCK_SIZE - length;
+    }
+
     //获取块已用的长度: 块长度-剩余的
     public int getLength() {
-        return (FileSystem.BLOCK_SIZE) - getRemainingLength();
+        return BLOCK_SIZE - getRemainingLength();
     }
 
     //获取最后一个目录项
@@ -59,6 +102,10 @@ public class DirectoryBlock extends ArrayList<DirectoryEntry> {
         return get(size() - 1);
     }
 
+    public void setFirstOffset(int firstOffset) {
+        this.firstOffset = firstOffset;
+    }
+
     //获取块号
     public int getBlock() {
         return BLOCK;
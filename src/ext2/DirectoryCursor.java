@@ -0,0 +1,84 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+
+//目录块的游标(享元): 在整块读进来的字节上依次指向每个有效的目录项, 字段直接从缓冲区读, 不为每个目录项创建对象和字符串
+//跳过节点号为0的空目录项(索引块, 空的叶子块)和节点已经删除的目录项
+public class DirectoryCursor {
+
+    private final ByteBuffer BLOCK;//一个目录块的内容, 从位置0开始
+    private final int BLOCK_SIZE;
+    private final InodeTable INODES;//判断节点是否已删除, 为 null 时不判断
+    private int offset;//当前目录项在块中的偏移量
+    private int next;//下一个目录项的偏移量
+
+    public DirectoryCursor(ByteBuffer block, int blockSize, InodeTable inodes) {
+        BLOCK = block;
+        BLOCK_SIZE = blockSize;
+        INODES = inodes;
+        next = 0;
+    }
+
+    //移到下一个有效的目录项, 没有了返回 false; 记录长度不对(块损坏)时也停止
+    public boolean next() {
+        while (next < BLOCK_SIZE) {
+            offset = next;
+            int recLen = getRecLen();
+            if (recLen < 8 || offset + recLen > BLOCK_SIZE) {
+                next = BLOCK_SIZE;
+                return false;
+            }
+            next = offset + recLen;
+            int inode = getInode();
+            if (inode != 0 && (INODES == null || INODES.getDeletionTime(inode) == 0)) return true;
+        }
+        return false;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getInode() {
+        return BLOCK.getInt(offset);
+    }
+
+    public int getRecLen() {
+        return BLOCK.getShort(offset + 4) & 0xFFFF;
+    }
+
+    public int getNameLength() {
+        return BLOCK.get(offset + 6) & 0xFF;
+    }
+
+    public byte getType() {
+        return BLOCK.get(offset + 7);
+    }
+
+    //文件名是否为 name(编码后的字节), 名字后面填充的0不算
+    public boolean nameEquals(byte name[]) {
+        int length = getNameLength();
+        if (length < name.length) return false;
+        for (int i = 0; i < name.length; i++) {
+            if (BLOCK.get(offset + 8 + i) != name[i]) return false;
+        }
+        for (int i = name.length; i < length; i++) {
+            if (BLOCK.get(offset + 8 + i) != 0) return false;
+        }
+        return true;
+    }
+
+    //文件名, 去掉后面填充的0
+    public String getFilename() {
+        byte name[] = new byte[getNameLength()];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = BLOCK.get(offset + 8 + i);
+        }
+        return new String(name).trim();
+    }
+
+    //当前目录项解码成对象
+    public DirectoryEntry toEntry() {
+        return DirectoryEntry.readFrom(BLOCK, offset);
+    }
+}
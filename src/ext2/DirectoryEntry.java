@@ -1,6 +1,6 @@
 package ext2;
 
-import com.google.common.primitives.Bytes;
+import java.nio.ByteBuffer;
 
 public class DirectoryEntry {
 
@@ -18,20 +18,19 @@ public class DirectoryEntry {
     // 文件类型 (1 byte)
     private byte fileType;
     // 文件名 (0 - 255 bytes)
-    private String filename;//这里会优化使其为4个字节的整数倍
+    private String filename;
+    private final byte nameBytes[];//文件名编码后的字节, 写到磁盘时在后面填充0使目录项长度为4个字节的整数倍
 
     public DirectoryEntry(int inode, byte type, String name) {
+        this(inode, type, name, name.getBytes());
+    }
+
+    private DirectoryEntry(int inode, byte type, String name, byte nameBytes[]) {
         this.inode = inode;
         fileType = type;
         filename = name;
-        nameLen = (byte) filename.length(); //只要文件名的长度不大于255字节, 就能强转成byte
-        if (nameLen % 4 != 0) {
-            //不是4的倍数，填充null
-            int nullsToAdd = 4 - (nameLen % 4);//计算需要填充o的数量
-            for (int i = 0; i < nullsToAdd; i++) {
-                filename += '\0';
-            }
-        }
+        this.nameBytes = nameBytes;
+        nameLen = (byte) nameBytes.length; //只要文件名的长度不大于255字节, 就能强转成byte
     }
 
     public DirectoryEntry(int inode, short recLen, byte type, String name) {
@@ -41,19 +40,46 @@ public class DirectoryEntry {
 
     // 一个目录项的字节数组表示，因此才可以将它写回磁盘
     public byte[] toByteArray() {
-        final byte I_NODE[] = BitUtils.toByteArray(inode);
-        final byte REC_LEN[] = BitUtils.toByteArray(recLen);
-        final byte NAME_LEN[] = BitUtils.toByteArray(nameLen);
-        final byte TYPE[] = BitUtils.toByteArray(fileType);
-        final byte FILE_NAME[] = filename.getBytes();
-        return Bytes.concat(I_NODE, REC_LEN, NAME_LEN, TYPE, FILE_NAME);
+        ByteBuffer buffer = ByteBuffer.allocate(getIdealLen());
+        writeTo(buffer, 0);
+        return buffer.array();
+    }
+
+    //把目录项编码到 buffer 的 offset 处(绝对位置), 共 getIdealLen() 个字节, 返回下一个目录项的位置
+    //节点号(4) 记录长度(2) 名字长度(1) 文件类型(1) 文件名(填充0到4的倍数)
+    public int writeTo(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset, inode);
+        buffer.putShort(offset + 4, recLen);
+        buffer.put(offset + 6, nameLen);
+        buffer.put(offset + 7, fileType);
+        final int end = offset + getIdealLen();
+        int position = offset + 8;
+        for (byte b : nameBytes) {
+            buffer.put(position++, b);
+        }
+        while (position < end) {
+            buffer.put(position++, (byte) 0);
+        }
+        return end;
+    }
+
+    //从 buffer 的 offset 处解码一个目录项, 只为文件名创建字符串
+    public static DirectoryEntry readFrom(ByteBuffer buffer, int offset) {
+        int nameLen = buffer.get(offset + 6) & 0xFF;
+        byte nameBytes[] = new byte[nameLen];
+        for (int i = 0; i < nameLen; i++) {
+            nameBytes[i] = buffer.get(offset + 8 + i);
+        }
+        DirectoryEntry entry = new DirectoryEntry(buffer.getInt(offset), buffer.get(offset + 7), new String(nameBytes), nameBytes);
+        entry.recLen = buffer.getShort(offset + 4);
+        return entry;
     }
 
     //理想长度:每个目录项的理想长度(4的倍数)取决于它的文件名有多少个字符
     // 如文件名长度1-4: 12        4-8: 16    8-12: 20  固定长度为8字节,加上文件名的优化过后的长度等于理想长度
     //返回整个目录项的理想长度, 而不是文件名的理想长度
     public short getIdealLen() {
-        return (short) (4 * ((8 + nameLen + 3) / 4));
+        return (short) (4 * ((8 + (nameLen & 0xFF) + 3) / 4));
     }
 
     public int getInode() {
@@ -0,0 +1,199 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.IntSupplier;
+
+//目录的哈希索引(和 ext3 的 dir_index 一样), 目录项按文件名的哈希值分到各个叶子块, 查找, 添加和删除只要看一个叶子块
+//索引根放在目录的第0块: 开头仍然是 . 和 .. 两个目录项, .. 的记录长度一直到块尾, 不认识索引的代码把这一块当作只有 . 和 .. 的普通目录块
+//.. 后面是 层数(4) 项数(4), 然后是按哈希值排列的索引项 哈希值(4) 逻辑块号(4), 第一项的哈希值为0
+//层数为0时索引项指向叶子块; 为1时指向索引块, 索引块开头是一个节点号为0并占满整块的空目录项, 后面是 项数(4) 保留(4) 和索引项
+//叶子块就是普通的目录块, 只放哈希值在 [本项的哈希值, 下一项的哈希值) 之间的目录项
+public class DirectoryIndex {
+
+    static final int ROOT_HEADER_LENGTH = 24;//. 和 .. 两个目录项的长度
+    private static final int ROOT_ENTRIES_OFFSET = ROOT_HEADER_LENGTH + 8;
+    private static final int NODE_ENTRIES_OFFSET = 16;
+
+    private final int ROOT_LIMIT;//根最多的索引项数
+    private final int NODE_LIMIT;//每个索引块最多的索引项数
+    private int levels;//0: 根直接指向叶子块, 1: 根指向索引块
+    private Node root;
+    private final Map<Integer, Node> NODES = new HashMap<>();//逻辑块号 -> 索引块(层数为1时)
+
+    //一组按哈希值排列的索引项
+    private static class Node {
+        final int hashes[];
+        final int blocks[];
+        int count;
+
+        Node(int limit) {
+            hashes = new int[limit];
+            blocks = new int[limit];
+        }
+
+        //哈希值不大于 hash 的最后一项
+        int find(int hash) {
+            int low = 1, high = count - 1;//第0项的哈希值是0, 总是满足
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (hashes[mid] <= hash) low = mid + 1;
+                else high = mid - 1;
+            }
+            return high < 0 ? 0 : high;
+        }
+
+        void insert(int hash, int block) {
+            int i = count == 0 ? 0 : find(hash) + 1;
+            System.arraycopy(hashes, i, hashes, i + 1, count - i);
+            System.arraycopy(blocks, i, blocks, i + 1, count - i);
+            hashes[i] = hash;
+            blocks[i] = block;
+            count++;
+        }
+
+        void readFrom(ByteBuffer buffer, int offset, int count) {
+            this.count = count;
+            for (int i = 0; i < count; i++) {
+                hashes[i] = buffer.getInt(offset + 8 * i);
+                blocks[i] = buffer.getInt(offset + 8 * i + 4);
+            }
+        }
+
+        void writeTo(ByteBuffer buffer, int offset) {
+            for (int i = 0; i < count; i++) {
+                buffer.putInt(offset + 8 * i, hashes[i]);
+                buffer.putInt(offset + 8 * i + 4, blocks[i]);
+            }
+        }
+    }
+
+    private DirectoryIndex(int blockSize) {
+        ROOT_LIMIT = (blockSize - ROOT_ENTRIES_OFFSET) / 8;
+        NODE_LIMIT = (blockSize - NODE_ENTRIES_OFFSET) / 8;
+        root = new Node(ROOT_LIMIT);
+    }
+
+    //新建只有两个叶子块的索引: 哈希值小于 split 的在 lowLeaf, 其余在 highLeaf
+    public static DirectoryIndex create(int blockSize, int lowLeaf, int split, int highLeaf) {
+        DirectoryIndex index = new DirectoryIndex(blockSize);
+        index.root.insert(0, lowLeaf);
+        index.root.insert(split, highLeaf);
+        return index;
+    }
+
+    //从目录第0块解码索引根, 层数为1时还要对 getNodeBlocks 中的每一块调用 readNode
+    public static DirectoryIndex readRoot(ByteBuffer block, int blockSize) {
+        DirectoryIndex index = new DirectoryIndex(blockSize);
+        index.levels = block.getInt(ROOT_HEADER_LENGTH);
+        index.root.readFrom(block, ROOT_ENTRIES_OFFSET, block.getInt(ROOT_HEADER_LENGTH + 4));
+        return index;
+    }
+
+    //索引块的逻辑块号, 层数为0时没有
+    public int[] getNodeBlocks() {
+        if (levels == 0) return new int[0];
+        int blocks[] = new int[root.count];
+        System.arraycopy(root.blocks, 0, blocks, 0, root.count);
+        return blocks;
+    }
+
+    //解码逻辑块 logical 上的索引块
+    public void readNode(int logical, ByteBuffer block) {
+        Node node = new Node(NODE_LIMIT);
+        node.readFrom(block, NODE_ENTRIES_OFFSET, block.getInt(8));
+        NODES.put(logical, node);
+    }
+
+    //文件名的哈希值(FNV-1a, 去掉符号位), 只由文件名的字节决定, 换了 JVM 也不变
+    public static int hash(String name) {
+        int hash = 0x811C9DC5;
+        for (byte b : name.getBytes()) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        return hash & 0x7FFFFFFF;
+    }
+
+    //. 和 .. 在索引根所在的第0块里, 不在任何叶子块里, 按文件名找它们时要找第0块
+    public static boolean inRoot(String name) {
+        return name.equals(".") || name.equals("..");
+    }
+
+    //哈希值为 hash 的目录项所在叶子块的逻辑块号
+    public int findLeaf(int hash) {
+        Node node = root;
+        if (levels == 1) node = NODES.get(root.blocks[root.find(hash)]);
+        return node.blocks[node.find(hash)];
+    }
+
+    //还能不能为哈希值为 hash 的叶子块再分出一个叶子块, 不能时抛出异常, 在申请块之前检查
+    public void checkSplit(int hash) {
+        if (levels == 1 && root.count == ROOT_LIMIT && NODES.get(root.blocks[root.find(hash)]).count == NODE_LIMIT) {
+            throw new IllegalArgumentException(String.format("目录太大: 索引已满(最多 %d 个叶子块)", ROOT_LIMIT * NODE_LIMIT));
+        }
+    }
+
+    //登记新分出的叶子块: 哈希值不小于 split 的目录项在逻辑块 leaf 上
+    //根放不下时把根的索引项移到新的索引块, 索引块放不下时分成两块, 新的索引块由 allocate 申请(返回逻辑块号)
+    //返回要写回磁盘的索引块的逻辑块号(根为0)
+    public TreeSet<Integer> addLeaf(int split, int leaf, IntSupplier allocate) {
+        TreeSet<Integer> dirty = new TreeSet<>();
+        dirty.add(0);
+        if (levels == 0) {
+            if (root.count < ROOT_LIMIT) {
+                root.insert(split, leaf);
+                return dirty;
+            }
+            //根满了, 加一层: 原来的索引项全部移到一个索引块
+            int logical = allocate.getAsInt();
+            Node node = new Node(NODE_LIMIT);
+            System.arraycopy(root.hashes, 0, node.hashes, 0, root.count);
+            System.arraycopy(root.blocks, 0, node.blocks, 0, root.count);
+            node.count = root.count;
+            NODES.put(logical, node);
+            root = new Node(ROOT_LIMIT);
+            root.insert(0, logical);
+            levels = 1;
+        }
+        int slot = root.find(split);
+        int logical = root.blocks[slot];
+        Node node = NODES.get(logical);
+        if (node.count == NODE_LIMIT) {//索引块满了, 后一半移到新的索引块
+            int upperLogical = allocate.getAsInt();
+            Node upper = new Node(NODE_LIMIT);
+            int half = node.count / 2;
+            upper.count = node.count - half;
+            System.arraycopy(node.hashes, half, upper.hashes, 0, upper.count);
+            System.arraycopy(node.blocks, half, upper.blocks, 0, upper.count);
+            node.count = half;
+            NODES.put(upperLogical, upper);
+            root.insert(upper.hashes[0], upperLogical);
+            dirty.add(upperLogical);
+            if (split >= upper.hashes[0]) {
+                logical = upperLogical;
+                node = upper;
+            }
+        }
+        node.insert(split, leaf);
+        dirty.add(logical);
+        return dirty;
+    }
+
+    //把逻辑块 logical 上的索引(根或索引块)编码到 block, 根的 . 和 .. 目录项由调用者写
+    public void writeTo(int logical, ByteBuffer block) {
+        if (logical == 0) {
+            block.putInt(ROOT_HEADER_LENGTH, levels);
+            block.putInt(ROOT_HEADER_LENGTH + 4, root.count);
+            root.writeTo(block, ROOT_ENTRIES_OFFSET);
+        } else {
+            Node node = NODES.get(logical);
+            block.putInt(0, 0);//节点号为0的空目录项, 占满整块
+            block.putShort(4, (short) block.limit());
+            block.putInt(8, node.count);
+            node.writeTo(block, NODE_ENTRIES_OFFSET);
+        }
+    }
+
+}
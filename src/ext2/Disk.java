@@ -8,21 +8,28 @@ public class Disk extends RandomAccessFile {
 
 
     // 256 MB = 262,144 KB = 268,435,456 bytes
-    private final int SIZE_MB = 256;//磁盘大小, 单位MB
+    public static final int SIZE_MB = 256;//默认磁盘大小, 单位MB
+
+    private final long SIZE_BYTES;//磁盘大小, 单位字节
 
     public Disk(File file) throws FileNotFoundException {
+        this(file, (long) SIZE_MB * 1024 * 1024);
+    }
+
+    public Disk(File file, long sizeBytes) throws FileNotFoundException {
         super(file, "rw");//参数： 文件路径，操作模式
+        SIZE_BYTES = sizeBytes;
     }
 
     public int getSizeMB() {
-        return SIZE_MB;
+        return (int) (SIZE_BYTES / 1024 / 1024);
     }
 
-    public int getSizeKB() {
-        return SIZE_MB * 1024;
+    public long getSizeKB() {
+        return SIZE_BYTES / 1024;
     }
 
-    public int getSizeBytes() {
-        return getSizeKB() * 1024;
+    public long getSizeBytes() {
+        return SIZE_BYTES;
     }
 }
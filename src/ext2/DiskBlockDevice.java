@@ -0,0 +1,73 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//基于原有 Disk(RandomAccessFile) 的块设备, Disk 只有一个共享的文件指针, 所以 seek + 读写 必须加锁
+public class DiskBlockDevice implements BlockDevice {
+
+    private final Disk DISK;
+    private final int BLOCK_SIZE;
+
+    public DiskBlockDevice(Disk disk, int blockSize) {
+        DISK = disk;
+        BLOCK_SIZE = blockSize;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return DISK.getSizeBytes();
+    }
+
+    @Override
+    public synchronized void read(long offset, ByteBuffer dst) throws IOException {
+        DISK.seek(offset);
+        if (dst.hasArray()) {
+            int len = dst.remaining();
+            DISK.readFully(dst.array(), dst.arrayOffset() + dst.position(), len);
+            dst.position(dst.position() + len);
+        } else {
+            byte bytes[] = new byte[dst.remaining()];
+            DISK.readFully(bytes);
+            dst.put(bytes);
+        }
+    }
+
+    @Override
+    public synchronized void write(long offset, ByteBuffer src) throws IOException {
+        DISK.seek(offset);
+        if (src.hasArray()) {
+            int len = src.remaining();
+            DISK.write(src.array(), src.arrayOffset() + src.position(), len);
+            src.position(src.position() + len);
+        } else {
+            byte bytes[] = new byte[src.remaining()];
+            src.get(bytes);
+            DISK.write(bytes);
+        }
+    }
+
+    @Override
+    public synchronized void setLength(long length) throws IOException {
+        if (DISK.length() != length) {//内存映射磁盘在打开时已经撑到磁盘大小
+            DISK.setLength(length);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (DISK instanceof MappedDisk) {
+            ((MappedDisk) DISK).force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        DISK.close();
+    }
+}
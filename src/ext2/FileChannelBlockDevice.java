@@ -0,0 +1,70 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//基于 FileChannel 的块设备, 使用带位置参数的 read/write (pread/pwrite), 不改变通道自身的位置, 多线程可以同时读写
+public class FileChannelBlockDevice implements BlockDevice {
+
+    private final FileChannel CHANNEL;
+    private final long SIZE;
+    private final int BLOCK_SIZE;
+
+    public FileChannelBlockDevice(FileChannel channel, long size, int blockSize) {
+        CHANNEL = channel;
+        SIZE = size;
+        BLOCK_SIZE = blockSize;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return SIZE;
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        long position = offset;
+        while (dst.hasRemaining()) {
+            int n = CHANNEL.read(dst, position);
+            if (n < 0) {//读到文件末尾之后(文件还没写到这里), 当作全0
+                while (dst.hasRemaining()) dst.put((byte) 0);
+                break;
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        long position = offset;
+        while (src.hasRemaining()) {
+            position += CHANNEL.write(src, position);
+        }
+    }
+
+    @Override
+    public void setLength(long length) throws IOException {
+        long size = CHANNEL.size();
+        if (size > length) {
+            CHANNEL.truncate(length);
+        } else if (size < length) {
+            CHANNEL.write(ByteBuffer.allocate(1), length - 1);//只写最后一个字节, 中间部分成为空洞
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        CHANNEL.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        CHANNEL.close();
+    }
+}
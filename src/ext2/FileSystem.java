@@ -1,79 +1,114 @@
 package ext2;
 
-import com.google.common.primitives.Bytes;
-import com.google.common.primitives.Ints;
-import com.google.common.primitives.Shorts;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static java.lang.Math.toIntExact;
 
 public class FileSystem {
 
-    private final Disk DISK;
-
-    //块大小
-    public static final int BLOCK_SIZE = 4096;//4096字节
-
-    //三个特殊用途的块组, 每个块组占用的块个数
-    private final int DATA_BITMAP_BLOCKS = 2; //数据块位示图, 占用的块数
-    private final int INODE_BITMAP_BLOCKS = 1;// 节点位示图, 占用的块数
-    private final int INODE_TABLE_BLOCKS = 20; //节点表, 占用的块数
-
-    //三个特殊用途的块组, 每个块组占用的字节数
-    private final int DATA_BITMAP_SIZE = DATA_BITMAP_BLOCKS * BLOCK_SIZE; // 8192 bytes, 数据块位示图, 占用的字节数
-    private final int INODE_BITMAP_SIZE = INODE_BITMAP_BLOCKS * BLOCK_SIZE; // 4096 bytes, 节点位示图, 占用的字节数
-    private final int INODE_TABLE_SIZE = INODE_TABLE_BLOCKS * BLOCK_SIZE; // 81920 bytes, 节点表, 占用的字节数
+    private final BlockDevice DEVICE;//块设备, 所有读写都带显式偏移量
+    private final MountOptions OPTIONS;//挂载选项
+
+    //默认块大小, 格式化时可以另外指定, 载入时以超级块中记录的为准
+    public static final int DEFAULT_BLOCK_SIZE = 4096;//4096字节
+
+    private Superblock superblock;//超级块, 记录块大小, 块数, 节点数和各区域位置
+    private int blockSize;//块大小, 来自超级块
+
+    private BlockGroup groups[];//块组描述符
+
+    // 位示图, 大小由超级块决定, 内存中把各块组的位示图按块组号顺序拼在一起
+    private Bitmap dataBitmap; //数据块位示图, 每一bit代表一个块, 为0代表空闲, 为1代表占用
+    private Bitmap inodeBitmap; //节点位示图, 每一bit代表一个节点, 为0代表空闲, 为1代表占用
+    private FreeExtents freeExtents[];//每个块组的空闲区间, 由数据块位示图建立, 用来一次申请连续的数据块
+    private final BitSet DIRTY_GROUPS = new BitSet();//空闲数改变了还没写回的块组描述符, 修改时锁住它自己
+    private final BitSet DIRTY_INODES = new BitSet();//只改了访问时间还没写回的节点号, 修改时锁住它自己
+    private final AtomicInteger freeBlockCount = new AtomicInteger();//全部块组的空闲数据块数, 每次申请和释放时同步修改, 不用数位示图
+    private final AtomicInteger freeInodeCount = new AtomicInteger();//全部块组的空闲节点数
+    private long lastCommit;//上次写回位示图的时间(毫秒)
+
+    //位示图写回统计: 只写修改过的位示图块和块组描述符
+    private long metadataOperations;//修改位示图的操作次数
+    private long bitmapBytesWritten;//写回的位示图和块组描述符总字节数
+    private long lastOperationBytes;//最近一次操作写回的字节数
+    private long inodeFlushes;//批量写回脏节点的次数(每段连续的节点算一次)
+
+    //每个线程一个编码缓冲区, 节点, 目录项, 位示图和块组描述符都直接编码到这里再写到磁盘, 不为每条记录创建数组
+    private final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(blockSize));
+
+    //间接块缓存: 块号 -> 块中的全部指针, 按访问顺序淘汰最久没用的, 查逻辑块号时不用每次都读盘
+    private static final int POINTER_CACHE_BLOCKS = 64;
+    private final Map<Integer, int[]> POINTER_CACHE = Collections.synchronizedMap(new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > POINTER_CACHE_BLOCKS;
+        }
+    });
 
-    //三个特殊用途的块组, 每个块组的开始在磁盘中的字节偏移量
-    private final int DATA_BITMAP_OFFSET = 0; //数据块位示图开始, 磁盘偏移量(单位字节)
-    private final int INODE_BITMAP_OFFSET = DATA_BITMAP_SIZE; // byte 8192, 节点位示图开始, 磁盘偏移量(单位字节)
-    private final int INODE_TABLE_OFFSET = INODE_BITMAP_OFFSET + INODE_BITMAP_SIZE; // byte 12288, 节点表开始, 磁盘偏移量(单位字节)
-    private final int DATA_OFFSET = INODE_TABLE_OFFSET + INODE_TABLE_SIZE; // byte 94208, 数据块开始, 磁盘偏移量(单位字节)
+    //文件的块映射缓存, 读文件和找最后一块时不用再读间接块; 最多缓存 2^20 个块号(4MB)
+    private final BlockMapCache BLOCK_MAPS = new BlockMapCache(1 << 20);
 
-    // 位示图
-    private final byte DATA_BITMAP[] = new byte[DATA_BITMAP_SIZE]; //数据块位示图, 每一bit代表一个块, 为0代表空闲, 为1代表占用, 8192byte*8 = 65536个块
-    private final byte INODE_BITMAP[] = new byte[INODE_BITMAP_SIZE]; //节点位示图, 每一bit代表一个节点, 为0代表空闲, 为1代表占用 4096byte*8 = 32768个节点
+    //目录项缓存, 解析路径时按 (父目录, 文件名) 找节点号, 不用再读目录块; 不存在的文件名也缓存
+    private final DentryCache DENTRIES = new DentryCache(8192);
 
     private Directory currentDir; //当前目录, 用于表示当前操作目录
     private InodeTable inodeTable; //节点表
 
+    public static final int ROOT_INODE = 1;//根目录的节点号
+
     public static final String ANSI_BLUE = "\u001B[44;30m";
     public static final String ANSI_RESET = "\u001B[0m";
 
     //打印 节点-块 索引表
     public void showInodeTable(InodeTable inodeTable) throws IOException {
-        for (Map.Entry<Integer, Inode> entry : inodeTable.entrySet()) {//节点表中， 遍历所有节点
-            if(entry.getValue().getDeletionTime()!=0){
-                continue;//跳过已经删除了的节点, 因为这里直接从节点表中读取节点， 并不是先判断节点位视图中是否存在， 所以可能删除了的节点也会读取进来
+        final int lastInode = getLastInodeNumber(groups.length - 1);
+        //节点表中， 遍历所有节点, next 会跳过已经删除了的节点
+        for (int inodeNumber = inodeTable.next(1, lastInode); inodeNumber != 0; inodeNumber = inodeTable.next(inodeNumber + 1, lastInode)) {
+            Inode inode = inodeTable.get(inodeNumber);
+            System.out.printf("\u001B[44;30m"+"节点号: %d --> "+ANSI_RESET,inodeNumber);
+            if (inode.hasFlag(Inode.INLINE_DATA_FLAG)) {
+                System.out.printf("\u001B[41;30m"+" 内嵌 %d 字节,"+ANSI_RESET, inode.getSize());
+                System.out.println();
+                continue;
             }
-            System.out.printf("\u001B[44;30m"+"节点号: %d --> "+ANSI_RESET,entry.getKey().intValue());
-            for (Integer dataBlockNumber : entry.getValue().getDirectBlocks()) {
+            if (inode.hasFlag(Inode.EXTENTS_FLAG)) {//区段块(青色)和区段(红色)
+                for (int[] extent : readExtents(inode, block -> System.out.printf("\u001B[46;30m"+" 块号:%d,"+ANSI_RESET, block))) {
+                    System.out.printf("\u001B[41;30m"+" 区段:%d-%d,"+ANSI_RESET, extent[1], extent[1] + extent[2] - 1);
+                }
+                System.out.println();
+                continue;
+            }
+            for (Integer dataBlockNumber : inode.getDirectBlocks()) {
                 System.out.printf("\u001B[41;30m"+" 块号:%d,"+ANSI_RESET,dataBlockNumber.intValue());//  打印十二个直接指针
             }
 
-            int indirectPointer = entry.getValue().getIndirectPointer();
-            if(indirectPointer!=0) {//间接指针
-                System.out.printf("\u001B[46;30m"+" 块号:%d,"+ANSI_RESET, indirectPointer);
-                int referenceCount = (int) Math.ceil(entry.getValue().getSize() / (double) BLOCK_SIZE) - 12;//计算间接指针个数， 这样只能计算文件类型的， 目录类型没有size这个字段 ，但一般目录不会用到间接指针
-                ArrayList<Integer> references = readIndirectPointer(indirectPointer, referenceCount);
-                for (Integer dataBlockNumber : references) {
-                    System.out.printf("\u001B[43;30m"+" 块号:%d,"+ANSI_RESET, dataBlockNumber.intValue());
-                }
-            }
-//			System.out.printf(" ( 删除时间: %s ) ",Utils.epochTimeToDate(entry.getValue().getDeletionTime()));
+            //间接块(青色)和它们指向的数据块(黄色), 按逻辑块顺序打印
+            walkIndirect(inode, blockCount(inode) - Inode.POINTER_COUNT,
+                    block -> System.out.printf("\u001B[43;30m"+" 块号:%d,"+ANSI_RESET, block),
+                    block -> System.out.printf("\u001B[46;30m"+" 块号:%d,"+ANSI_RESET, block));
+//			System.out.printf(" ( 删除时间: %s ) ",Utils.epochTimeToDate(inode.getDeletionTime()));
             System.out.println();
         }
     }
 
     //打印位示图
-    private void showBitMap(int oneLineSize, int totalShowSize, byte[] target){
-        List<Integer> targetList = BitUtils.bitMapToList(target);
+    private void showBitMap(int oneLineSize, int totalShowSize, Bitmap target){
         int y=1;
         for(int x=0; x<totalShowSize; x++) {
 //			打印表头
@@ -87,7 +122,7 @@ public class FileSystem {
                 System.out.printf(ANSI_BLUE+"%3d"+ANSI_RESET, y); //打印行号
                 y++;
             }
-            int data = targetList.get(x);
+            int data = target.get(x + 1) ? 1 : 0;
             if(data==1){
                 System.out.printf("\u001B[41;30m"+"%3d"+ANSI_RESET, data);//打印数据1
             }else{
@@ -102,13 +137,20 @@ public class FileSystem {
     //显示位示图和索引表
     public void show() throws IOException {
 
+        System.out.println();
+        System.out.println("超级块如下:");
+        System.out.println(superblock);
+        for (BlockGroup group : groups) {
+            System.out.println(group);
+        }
+
         System.out.println();
         System.out.println("数据块位示图如下:");
-        showBitMap(60,600,DATA_BITMAP);
+        showBitMap(60,600,dataBitmap);
 
         System.out.println();
         System.out.println("节点位示图如下:");
-        showBitMap(60,600,INODE_BITMAP);
+        showBitMap(60,600,inodeBitmap);
 
         System.out.println();
         System.out.println("索引表如下:");
@@ -117,62 +159,180 @@ public class FileSystem {
     }
 
 
+    public FileSystem(BlockDevice device) {
+        this(device, new MountOptions());
+    }
+
+    public FileSystem(BlockDevice device, MountOptions options) {
+        DEVICE = device;
+        OPTIONS = options;
+    }
+
     public FileSystem(Disk disk) {
-        DISK = disk;
+        this(new DiskBlockDevice(disk, DEFAULT_BLOCK_SIZE));
     }
 
     //载入, 从磁盘获取结构并将它们分配到内存中
     public void load() throws IOException {
         if (currentDir == null) {
-            // 将 位示图 和 节点表 加载到内存中
+            // 将 超级块, 位示图 和 节点表 加载到内存中
+            readSuperblock();//读取卷的几何参数
+            readGroups();//读取块组描述符
             allocateBitmaps(); //加载数据块位示图和节点位示图
             allocateInodeTable();//加载节点表
             currentDir = getRoot(); //当前目录设为根目录
         }
     }
 
-    //加载两个位示图
+    //读取超级块, 没有超级块的旧磁盘使用旧的固定布局
+    private void readSuperblock() throws IOException {
+        byte bytes[] = new byte[Superblock.SIZE];
+        DEVICE.read(0, ByteBuffer.wrap(bytes));
+        Superblock sb = Superblock.fromByteArray(bytes);
+        setSuperblock(sb != null ? sb : Superblock.legacy());
+    }
+
+    //按超级块设置块大小并分配位示图
+    private void setSuperblock(Superblock sb) {
+        superblock = sb;
+        blockSize = sb.getBlockSize();
+        dataBitmap = new Bitmap(sb.getGroupCount() * sb.getDataBlocksPerGroup(), blockSize * 8);
+        inodeBitmap = new Bitmap(sb.getGroupCount() * sb.getInodeBitsPerGroup(), blockSize * 8);
+    }
+
+    //读取块组描述符表, 没有块组描述符表的旧磁盘由超级块推算出唯一的块组
+    private void readGroups() throws IOException {
+        if (!superblock.hasGroupTable()) {
+            groups = superblock.createGroups();
+            return;
+        }
+        groups = new BlockGroup[superblock.getGroupCount()];
+        byte table[] = new byte[groups.length * BlockGroup.SIZE];
+        DEVICE.read(getBlockOffset(superblock.getGroupTableBlock()), ByteBuffer.wrap(table));
+        for (int g = 0; g < groups.length; g++) {
+            groups[g] = BlockGroup.fromByteArray(Arrays.copyOfRange(table, g * BlockGroup.SIZE, (g + 1) * BlockGroup.SIZE), g);
+        }
+    }
+
+    //加载每个块组的两个位示图, 拼到内存中的位示图里
     private void allocateBitmaps() throws IOException {
-        DISK.seek(DATA_BITMAP_OFFSET);//指针移动到数据块位示图开始
-        DISK.read(DATA_BITMAP); // 读取数据块位示图
-        DISK.seek(INODE_BITMAP_OFFSET);//指针移动到节点位示图开始
-        DISK.read(INODE_BITMAP); //读取节点位示图
+        final byte dataSlice[] = new byte[superblock.getDataBitmapBlocks() * blockSize];//每个块组的位示图
+        final byte inodeSlice[] = new byte[superblock.getInodeBitmapBlocks() * blockSize];
+        for (BlockGroup group : groups) {
+            int g = group.getNumber();
+            DEVICE.read(getBlockOffset(group.getDataBitmapBlock()), ByteBuffer.wrap(dataSlice)); // 读取数据块位示图
+            dataBitmap.fromByteArray(dataSlice, g * dataSlice.length);
+            DEVICE.read(getBlockOffset(group.getInodeBitmapBlock()), ByteBuffer.wrap(inodeSlice)); //读取节点位示图
+            inodeBitmap.fromByteArray(inodeSlice, g * inodeSlice.length);
+        }
+        reservePaddingBits();
+        buildFreeExtents();
+        if (!superblock.hasGroupTable()) {
+            //旧磁盘没有记录空闲数, 数一遍位示图
+            for (BlockGroup group : groups) {
+                int g = group.getNumber();
+                group.setFreeBlocks(group.getDataBlockCount() - dataBitmap.count(getFirstBlockNumber(g), getLastBlockNumber(g)));
+                group.setFreeInodes(group.getInodeCount() - inodeBitmap.count(getFirstInodeNumber(g), getLastInodeNumber(g)));
+            }
+        }
+        countFree();
+        //保留位每次载入都会重新置上, 不需要写回
+        dataBitmap.clearDirty();
+        inodeBitmap.clearDirty();
+        DIRTY_GROUPS.clear();
+        lastCommit = System.currentTimeMillis();
     }
 
-    //加载节点表
-    private void allocateInodeTable() throws IOException {
-        byte inodeBytes[] = new byte[80]; //每个节点所以字段和为80字节
-        inodeTable = new InodeTable();//节点表
-        Inode inode; //节点
+    //每个块组的位示图中超出本组数据块数/节点数的位没有对应的块/节点, 置为占用, 免得被分配出去
+    private void reservePaddingBits() {
+        final int blockBits = superblock.getDataBlocksPerGroup();
+        final int inodeBits = superblock.getInodeBitsPerGroup();
+        for (BlockGroup group : groups) {
+            int g = group.getNumber();
+            dataBitmap.set(getLastBlockNumber(g) + 1, (g + 1) * blockBits);
+            inodeBitmap.set(getLastInodeNumber(g) + 1, (g + 1) * inodeBits);
+        }
+    }
+
+    //由块组描述符中的空闲数算出总的空闲数, 只在载入和格式化时做一次
+    private void countFree() {
+        int blocks = 0, inodes = 0;
+        for (BlockGroup group : groups) {
+            blocks += group.getFreeBlocks();
+            inodes += group.getFreeInodes();
+        }
+        freeBlockCount.set(blocks);
+        freeInodeCount.set(inodes);
+    }
+
+    //由数据块位示图建立每个块组的空闲区间
+    private void buildFreeExtents() {
+        freeExtents = new FreeExtents[groups.length];
+        for (BlockGroup group : groups) {
+            int g = group.getNumber();
+            freeExtents[g] = FreeExtents.fromBitmap(dataBitmap, getFirstBlockNumber(g), getLastBlockNumber(g));
+        }
+    }
 
-        ArrayList<Integer> usedInodes = BitUtils.findAllSetBits(INODE_BITMAP);//由节点位示图, 找出所有已分配的节点号
-        for (Integer usedInode:usedInodes) {
-            DISK.seek(getInodeOffset(usedInode.intValue()));//指针移动到该节点号
-            DISK.read(inodeBytes);//读取该节点
-            inode = Inode.fromByteArray(inodeBytes, usedInode.intValue());//将读取到的节点转换成对象
-            if (inode != null)
-                inodeTable.put(usedInode.intValue(), inode);//将(节点号,节点对象) 添加到节点表
+    //加载节点表: 每个块组的节点表一次顺序读入, 不管有多少个节点在用; 字段在用到时才从记录中读取
+    private void allocateInodeTable() throws IOException {
+        inodeTable = new InodeTable(superblock);//节点表, 按超级块中的节点数一次分配
+
+        for (BlockGroup group : groups) {
+            int g = group.getNumber();
+            DEVICE.read(getBlockOffset(group.getInodeTableBlock()), inodeTable.groupRecords(g));//整个节点表直接读到节点表的内存里
+            //节点位示图中空闲的节点可能还留着删除前的记录, 从表中去掉, 和只读已分配节点时一样
+            final int last = getLastInodeNumber(g);
+            for (int freeInode = inodeBitmap.nextClearBit(getFirstInodeNumber(g), last); freeInode != 0;
+                 freeInode = inodeBitmap.nextClearBit(freeInode + 1, last)) {
+                inodeTable.remove(freeInode);
+            }
         }
     }
 
-    //格式化磁盘函数,用于第一次使用时
+    //格式化磁盘函数,用于第一次使用时, 使用默认块大小, 节点数按磁盘大小计算
     public void format() throws IOException {
-        final byte ZEROS[] = new byte[DISK.getSizeBytes()];//磁盘大小的字节数组
-        DISK.seek(0);//指针移动到磁盘开始
-        DISK.write(ZEROS); //填充0
+        format(DEFAULT_BLOCK_SIZE, 0);
+    }
+
+    //按给定的块大小和节点数(<=0 表示按磁盘大小计算)格式化整个设备
+    public void format(int blockSize, int inodeCount) throws IOException {
+        format(blockSize, inodeCount, Superblock.DEFAULT_INODE_SIZE);
+    }
+
+    //另外指定节点记录大小, 大于128字节时多出的部分用来内嵌小文件的内容
+    public void format(int blockSize, int inodeCount, int inodeSize) throws IOException {
+        setSuperblock(Superblock.create(DEVICE.getSizeBytes(), blockSize, inodeCount, inodeSize));
+        groups = superblock.createGroups();
+        DENTRIES.clear();
+        DIRTY_GROUPS.set(0, groups.length);//元数据区清0后块组描述符表要全部写一遍
+        currentDir = null;
+
+        DEVICE.setLength(superblock.getSizeBytes());//把镜像文件撑到磁盘大小, 稀疏文件, 不需要真的写满0
+
+        //只把元数据区(超级块, 块组描述符表, 每个块组的位示图和节点表)清0, 数据块在分配后总是先写后读
+        final ByteBuffer zeros = ByteBuffer.allocate(1024 * 1024);
+        zeroBlocks(0, superblock.getFirstGroupBlock(), zeros);
+        for (BlockGroup group : groups) {
+            zeroBlocks(group.getDataBitmapBlock(), group.getFirstDataBlock() - group.getDataBitmapBlock(), zeros);
+        }
+        DEVICE.write(0, ByteBuffer.wrap(superblock.toByteArray()));//写超级块
+        reservePaddingBits();
+        buildFreeExtents();
+        countFree();
 
-        //创建根目录
-        int dirBlock = BitUtils.nextClearBitThenSet(DATA_BITMAP);//由数据块位示图获取一个空闲块号
-        int dirInode = BitUtils.nextClearBitThenSet(INODE_BITMAP);//由节点位示图获取一个空闲节点号
+        //创建根目录, 放在块组0
+        int dirInode = allocateInode(0);//由节点位示图获取一个空闲节点号
+        int dirBlock = allocateBlock(0);//由数据块位示图获取一个空闲块号
 
         // 创建第一个目录(root)
         Inode inode = new Inode(dirInode, Inode.DIRECTORY);//新建一个节点对象
         inode.addBlocks(dirBlock); //将块号添加到那12个直接指针位置
-        inodeTable = new InodeTable();//新建节点表对象
+        inodeTable = new InodeTable(superblock);//新建节点表对象
         inodeTable.put(dirInode, inode);//将(节点号,节点对象)添加到节点表
 
         // 创建 . and .. 目录项
-        DirectoryBlock block = new DirectoryBlock(dirBlock);
+        DirectoryBlock block = new DirectoryBlock(dirBlock, blockSize);
         DirectoryEntry self, parent;//自身目录项, 父目录项
         self = new DirectoryEntry(dirInode, DirectoryEntry.DIRECTORY, ".");//new一个目录项(节点号, 节点类型, 目录名)
         parent = new DirectoryEntry(dirInode, DirectoryEntry.DIRECTORY, "..");//根目录的. 和 .. 都是自己
@@ -182,70 +342,367 @@ public class FileSystem {
         currentDir.add(block);//将根目录块添加到当前目录
 
         // 写目录节点 和 它的目录项到磁盘
-        DISK.seek(getInodeOffset(dirInode));//指针移动到节点号
-        DISK.write(inode.toByteArray());//将节点写入磁盘
-        DISK.seek(getDataBlockOffset(dirBlock));//指针移动到该块号
-        DISK.write(self.toByteArray());//将目录项写入到硬盘
-        DISK.write(parent.toByteArray());
+        writeInode(inode);//将节点写入磁盘
+        writeEntries(getDataBlockOffset(dirBlock), self, parent);//将目录项写入到硬盘
 
-        writeBitmaps();//更新数据块位示图和节点位示图到硬盘
+        flushBitmaps();//更新数据块位示图, 节点位示图和块组描述符表到硬盘, 格式化不延迟
+        bitmapBytesWritten = 0;//格式化写入的不算在统计里
     }
 
-    //写两个位示图到磁盘
-    private void writeBitmaps() throws IOException {
-        DISK.seek(DATA_BITMAP_OFFSET);//指针移动到数据块位示图开始
-        DISK.write(DATA_BITMAP); // 写数据块位示图
-        DISK.seek(INODE_BITMAP_OFFSET);//指针移动到节点位示图开始
-        DISK.write(INODE_BITMAP); //写节点位示图
+    //把延迟的位示图和缓存中的修改全部写回磁盘
+    public void sync() throws IOException {
+        if (superblock != null) {
+            flushInodes();
+            flushBitmaps();
+        }
+        DEVICE.flush();
     }
 
+    //卸载: 写回所有修改并关闭设备
+    public void unmount() throws IOException {
+        sync();
+        DEVICE.close();
+    }
 
-    // 由块号读取目录块返回（只限目录类型）
-    public DirectoryBlock readDirectoryBlock(int blockIndex) throws IOException {
-        DirectoryBlock block = new DirectoryBlock(blockIndex);//新建目录块对象
-
-        // 字节数组
-        byte inodeBytes[] = new byte[4]; //目录项中节点号
-        byte recLenBytes[] = new byte[2]; //目录项中记录长度
-        byte filenameBytes[]; //目录项中 文件名
-
-
-        int inode, idealLen; //节点号, 目录项理想(真实)长度
-        short recLen;//记录长度
-        byte nameLen, type; //文件名长度, 文件类型
-        String name;//文件名
-
-        // 这将决定何时停止读取一个块(当所有rec_len的和等于4096时)
-        int recLenCount = 0;//已读取的长度
-
-        DISK.seek(getDataBlockOffset(blockIndex));//指针移动到该块号
-        while (recLenCount != BLOCK_SIZE) {//如果这块没读完
-
-            DISK.read(inodeBytes);//节点号
-            DISK.read(recLenBytes);//记录长度, 文件名已经优化过了
-            nameLen = DISK.readByte();//文件名真实长度,即没有优化过的
-            type = DISK.readByte();//文件类型
-
-            inode = Ints.fromByteArray(inodeBytes);//节点号: 由读取的字节数组转 int
-            recLen = Shorts.fromByteArray(recLenBytes);//记录长度（块中的最后一个目录项的记录长度并非目录项真实长度,其他都为名字优化过后的真实长度）
-
-            // // 1-4: 12        4-8: 16    8-12: 20
-            //文件名长度会填充成四个字节的整数倍
-            idealLen = (4 * ((8 + nameLen + 3) / 4));
-            filenameBytes = new byte[idealLen - 8];//4 8 12 16 ......
-            DISK.read(filenameBytes);//读取文件名
-            name = new String(filenameBytes);//文件名
-
-            //检查条目是否已被删除(如果在其inode中设置了删除时间)
-            Inode entryInode = inodeTable.get(inode);
-            if (entryInode.getDeletionTime() == 0) {//等于0, 说明没删除, 删除时已将前一个目录项的记录长度覆盖掉被删除的， 但为了保险虽然磁盘读取得到, 但是已经删除了,不必返回去，TODO
-                DirectoryEntry entry = new DirectoryEntry(inode, recLen, type, name);//节点号,文件长度,类型,文件名 重新构建一个目录项
-                block.add(entry);
-                recLenCount += recLen;//计算下一个目录项的指针
-                DISK.seek(getDataBlockOffset(blockIndex) + recLenCount);//移动指针到下一个目录项
+    //把 start 开始的 count 个块清0, 分批写免得大卷占用太多内存
+    private void zeroBlocks(int start, int count, ByteBuffer zeros) throws IOException {
+        final long end = getBlockOffset(start + count);
+        for (long offset = getBlockOffset(start); offset < end; offset += zeros.capacity()) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), end - offset));
+            DEVICE.write(offset, zeros);
+        }
+    }
+
+    //一次修改之后写回位示图, 设置了提交间隔时, 距离上次写回不到这个时间就先不写
+    private synchronized void writeBitmaps() throws IOException {
+        metadataOperations++;
+        lastOperationBytes = 0;
+        if (OPTIONS.getCommitInterval() > 0
+                && System.currentTimeMillis() - lastCommit < OPTIONS.getCommitInterval() * 1000L) {
+            return;
+        }
+        flushInodes();
+        lastOperationBytes = flushBitmaps();
+    }
+
+    //只把修改过的位示图块和块组描述符写到磁盘, 返回写入的字节数; 同一时间只有一个线程在写回
+    private synchronized long flushBitmaps() throws IOException {
+        long written = 0;
+        for (int b = dataBitmap.nextDirtyBlock(0); b >= 0; b = dataBitmap.nextDirtyBlock(b + 1)) {
+            dataBitmap.clearDirty(b);//先清标记再取内容, 写回期间的修改会重新标记
+            BlockGroup group = groups[b / superblock.getDataBitmapBlocks()];//第b块位示图属于哪个块组
+            int block = group.getDataBitmapBlock() + b % superblock.getDataBitmapBlocks();
+            ByteBuffer buffer = scratch(blockSize);
+            dataBitmap.writeTo(buffer, 0, b * blockSize, blockSize);
+            DEVICE.write(getBlockOffset(block), buffer); // 写数据块位示图
+            written += blockSize;
+        }
+        for (int b = inodeBitmap.nextDirtyBlock(0); b >= 0; b = inodeBitmap.nextDirtyBlock(b + 1)) {
+            inodeBitmap.clearDirty(b);
+            BlockGroup group = groups[b / superblock.getInodeBitmapBlocks()];
+            int block = group.getInodeBitmapBlock() + b % superblock.getInodeBitmapBlocks();
+            ByteBuffer buffer = scratch(blockSize);
+            inodeBitmap.writeTo(buffer, 0, b * blockSize, blockSize);
+            DEVICE.write(getBlockOffset(block), buffer); //写节点位示图
+            written += blockSize;
+        }
+        BitSet dirtyGroups;
+        synchronized (DIRTY_GROUPS) {
+            dirtyGroups = (BitSet) DIRTY_GROUPS.clone();
+            DIRTY_GROUPS.clear();
+        }
+        if (superblock.hasGroupTable()) {
+            for (int g = dirtyGroups.nextSetBit(0); g >= 0; g = dirtyGroups.nextSetBit(g + 1)) {
+                long offset = getBlockOffset(superblock.getGroupTableBlock()) + (long) g * BlockGroup.SIZE;
+                ByteBuffer buffer = scratch(BlockGroup.SIZE);
+                groups[g].writeTo(buffer, 0);
+                DEVICE.write(offset, buffer);//写块组描述符(空闲数)
+                written += BlockGroup.SIZE;
+            }
+        }
+        bitmapBytesWritten += written;
+        lastCommit = System.currentTimeMillis();
+        return written;
+    }
+
+    //把只改了访问时间的节点写回, 节点号连续(同一块组内)的一段在磁盘上也连续, 一次写入
+    private void flushInodes() throws IOException {
+        BitSet dirty;
+        synchronized (DIRTY_INODES) {
+            if (DIRTY_INODES.isEmpty()) return;
+            dirty = (BitSet) DIRTY_INODES.clone();
+            DIRTY_INODES.clear();
+        }
+        for (int first = dirty.nextSetBit(0); first >= 0; ) {
+            int last = first;//[first, last] 是一段连续的节点
+            while (dirty.get(last + 1) && getInodeGroup(last + 1) == getInodeGroup(first)) {
+                last++;
+            }
+            DEVICE.write(getInodeOffset(first), inodeTable.records(first, last - first + 1));
+            inodeFlushes++;
+            first = dirty.nextSetBit(last + 1);
+        }
+    }
+
+    //读文件时按挂载选项更新访问时间: 只改节点表, 记为脏节点, 不马上写盘
+    private void touchAccessTime(Inode inode) {
+        final int now = toIntExact(System.currentTimeMillis() / 1000);
+        switch (OPTIONS.getAtimeMode()) {
+            case MountOptions.NOATIME:
+                return;
+            case MountOptions.RELATIME://访问时间比修改时间新, 并且不到一天, 就不用更新
+                if (inode.getLastAccessTime() > inode.getModifiedTime() && now - inode.getLastAccessTime() < 24 * 60 * 60) return;
+                break;
+        }
+        inode.setLastAccessTime(now);
+        synchronized (DIRTY_INODES) {
+            DIRTY_INODES.set(inode.getInode());
+        }
+    }
+
+    //位示图写回统计
+    public String getBitmapStats() {
+        int dirtyInodes;
+        synchronized (DIRTY_INODES) {
+            dirtyInodes = DIRTY_INODES.cardinality();
+        }
+        return String.format("挂载选项: %s%n位示图写回: 操作 %d 次, 共写入 %d 字节, 平均每次操作 %.1f 字节, 最近一次操作 %d 字节, 待写回: %s%n" +
+                        "访问时间: 批量写回节点 %d 次, 待写回节点 %d 个%n%s%n%s",
+                OPTIONS, metadataOperations, bitmapBytesWritten,
+                metadataOperations == 0 ? 0.0 : bitmapBytesWritten / (double) metadataOperations, lastOperationBytes,
+                hasDirtyBitmaps() ? "有" : "无", inodeFlushes, dirtyInodes, BLOCK_MAPS, DENTRIES);
+    }
+
+    private boolean hasDirtyBitmaps() {
+        synchronized (DIRTY_GROUPS) {
+            return dataBitmap.nextDirtyBlock(0) >= 0 || inodeBitmap.nextDirtyBlock(0) >= 0 || !DIRTY_GROUPS.isEmpty();
+        }
+    }
+
+    private void markGroupDirty(int g) {
+        synchronized (DIRTY_GROUPS) {
+            DIRTY_GROUPS.set(g);
+        }
+    }
+
+    //磁盘使用情况, 直接取空闲数, 不扫描位示图
+    public String getUsage() {
+        final int blocks = superblock.getDataBlockCount(), inodes = superblock.getInodeCount();
+        final int free = freeBlockCount.get(), freeInodes = freeInodeCount.get();
+        return String.format("数据块: 总数 %d, 已用 %d, 空闲 %d, 使用率 %d%%%n", blocks, blocks - free, free, percent(blocks - free, blocks))
+                + String.format("节点: 总数 %d, 已用 %d, 空闲 %d, 使用率 %d%%%n", inodes, inodes - freeInodes, freeInodes, percent(inodes - freeInodes, inodes))
+                + String.format("块大小 %d 字节, 空闲空间 %d KB / %d KB", blockSize,
+                (long) free * blockSize / 1024, (long) blocks * blockSize / 1024);
+    }
+
+    private static int percent(int used, int total) {
+        return total == 0 ? 0 : (int) ((long) used * 100 / total);
+    }
+
+    public int getFreeBlockCount() {
+        return freeBlockCount.get();
+    }
+
+    public int getFreeInodeCount() {
+        return freeInodeCount.get();
+    }
+
+    //写之前检查空闲块数和空闲节点数够不够, 不够直接抛出异常, 这时还没有申请任何块和节点, 不用回滚
+    private void checkSpace(int blocks, int inodes) throws NoSpaceException {
+        final int freeInodes = freeInodeCount.get(), freeBlocks = freeBlockCount.get();
+        if (inodes > freeInodes) {
+            throw new NoSpaceException(inodes, freeInodes, "节点");
+        }
+        if (blocks > freeBlocks) {
+            throw new NoSpaceException(blocks, freeBlocks, "数据块");
+        }
+    }
+
+    //在块组 group 中申请一个空闲节点, 本组没有空闲节点时依次找后面的块组
+    //节点位示图用 CAS 占用空闲位, 多个线程同时建文件时不需要加锁, 也不会拿到同一个节点
+    private int allocateInode(int group) throws NoSpaceException {
+        checkSpace(0, 1);
+        for (int i = 0; i < groups.length; i++) {
+            BlockGroup target = groups[(group + i) % groups.length];
+            if (target.getFreeInodes() <= 0) continue;
+            int g = target.getNumber();
+            int inode = inodeBitmap.allocate(getFirstInodeNumber(g), getLastInodeNumber(g));
+            if (inode != 0) {
+                target.addFreeInodes(-1);
+                freeInodeCount.decrementAndGet();
+                markGroupDirty(g);
+                return inode;
+            }
+        }
+        throw new NoSpaceException("没有空闲的节点!");
+    }
+
+    //在块组 group 中申请一个空闲数据块
+    private int allocateBlock(int group) throws NoSpaceException {
+        return allocateBlocks(group, 1)[0];
+    }
+
+    //在块组 group 中申请 n 个数据块, 尽量连续; 本组不够时依次找后面的块组
+    //返回的块号按顺序排列, 连续的块号在磁盘上也是连续的(同一块组内), 可以一次写入
+    //空闲区间树不是线程安全的, 每个块组的区间树单独加锁, 不同块组的申请互不影响
+    private int[] allocateBlocks(int group, int n) throws NoSpaceException {
+        return allocateBlocks(group, n, 0);
+    }
+
+    //同上, 但先从 goal 所在的块组试, 尽量从 goal 开始放(见 FreeExtents.allocate(n, goal)); goal 为0时和上面一样
+    private int[] allocateBlocks(int group, int n, int goal) throws NoSpaceException {
+        checkSpace(n, 0);//空闲数不够时不去找空闲区间
+        if (goal > 0 && getBlockGroup(goal) < groups.length) {
+            group = getBlockGroup(goal);
+        } else {
+            goal = 0;
+        }
+        int blocks[] = new int[n];
+        int count = 0;
+        for (int i = 0; i < groups.length && count < n; i++) {
+            BlockGroup target = groups[(group + i) % groups.length];
+            if (target.getFreeBlocks() <= 0) continue;
+            int g = target.getNumber();
+            int taken = count;
+            synchronized (freeExtents[g]) {
+                for (int[] run : freeExtents[g].allocate(n - count, i == 0 ? goal : 0)) {
+                    dataBitmap.set(run[0], run[0] + run[1] - 1);
+                    target.addFreeBlocks(-run[1]);
+                    freeBlockCount.addAndGet(-run[1]);
+                    for (int k = 0; k < run[1]; k++) {
+                        blocks[count++] = run[0] + k;
+                    }
+                }
+            }
+            if (count > taken) markGroupDirty(g);//本组一个块都没取到时不用写回它的描述符和位示图
+        }
+        if (count < n) {
+            for (int k = 0; k < count; k++) {
+                freeBlock(blocks[k]);//空间不够, 把已经申请的还回去
+            }
+            throw new NoSpaceException("磁盘空间不足!");
+        }
+        return blocks;
+    }
+
+    //释放一个数据块
+    private void freeBlock(int block) {
+        int g = getBlockGroup(block);
+        synchronized (freeExtents[g]) {
+            if (!dataBitmap.release(block)) return;
+            freeExtents[g].free(block);
+        }
+        POINTER_CACHE.remove(block);//可能是间接块
+        groups[g].addFreeBlocks(1);
+        freeBlockCount.incrementAndGet();
+        markGroupDirty(g);
+    }
+
+    //把 data 中从 offset 开始的内容依次写到 blocks 中的块, 块号连续(同一块组内)的一段只写一次
+    private void writeBlocks(int blocks[], byte data[], int offset) throws IOException {
+        int i = 0;
+        while (i < blocks.length && offset < data.length) {
+            int j = i;//[i, j] 是一段连续的块
+            while (j + 1 < blocks.length && blocks[j + 1] == blocks[j] + 1 && getBlockGroup(blocks[j + 1]) == getBlockGroup(blocks[i])) {
+                j++;
             }
+            int len = Math.min((j - i + 1) * blockSize, data.length - offset);
+            DEVICE.write(getDataBlockOffset(blocks[i]), ByteBuffer.wrap(data, offset, len));
+            offset += len;
+            i = j + 1;
+        }
+    }
+
+    //把 blocks 中的块依次读到 data 中从 offset 开始的位置, 块号连续(同一块组内)的一段只读一次
+    private void readBlocks(int blocks[], byte data[], int offset) throws IOException {
+        int i = 0;
+        while (i < blocks.length && offset < data.length) {
+            int j = i;//[i, j] 是一段连续的块
+            while (j + 1 < blocks.length && blocks[j + 1] == blocks[j] + 1 && getBlockGroup(blocks[j + 1]) == getBlockGroup(blocks[i])) {
+                j++;
+            }
+            int len = Math.min((j - i + 1) * blockSize, data.length - offset);
+            DEVICE.read(getDataBlockOffset(blocks[i]), ByteBuffer.wrap(data, offset, len));
+            offset += len;
+            i = j + 1;
+        }
+    }
+
+    //释放一个节点
+    private void freeInode(int inode) {
+        if (inodeBitmap.release(inode)) {
+            BlockGroup group = groups[getInodeGroup(inode)];
+            group.addFreeInodes(1);
+            freeInodeCount.incrementAndGet();
+            markGroupDirty(group.getNumber());
+        }
+    }
+
+    //将节点写到它在节点表中的位置
+    private void writeInode(Inode inode) throws IOException {
+        synchronized (DIRTY_INODES) {
+            DIRTY_INODES.clear(inode.getInode());//整条记录马上写回, 之前改的访问时间也一起写了
+        }
+        int length = superblock.getInodeSize();//旧磁盘只写80字节, 节点记录更大时连同内嵌数据一起写
+        ByteBuffer buffer = scratch(length);
+        inode.writeTo(buffer, 0, length);
+        DEVICE.write(getInodeOffset(inode.getInode()), buffer);
+    }
+
+    //把几个相邻的目录项依次编码后一次写到 offset 处
+    private void writeEntries(long offset, DirectoryEntry... entries) throws IOException {
+        int length = 0;
+        for (DirectoryEntry entry : entries) {
+            length += entry.getIdealLen();
+        }
+        ByteBuffer buffer = scratch(length);
+        int position = 0;
+        for (DirectoryEntry entry : entries) {
+            position = entry.writeTo(buffer, position);
+        }
+        DEVICE.write(offset, buffer);
+    }
+
+    //本线程的编码缓冲区, position 为0, limit 为 length
+    private ByteBuffer scratch(int length) {
+        ByteBuffer buffer = SCRATCH.get();
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+            SCRATCH.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+
+    // 由块号读取目录块返回（只限目录类型）, 整块一次读进来再用游标解码, 跳过空的和节点已删除的目录项
+    public DirectoryBlock readDirectoryBlock(int blockIndex) throws IOException {
+        DirectoryBlock block = new DirectoryBlock(blockIndex, blockSize);//新建目录块对象
+        DirectoryCursor cursor = readCursor(blockIndex);
+        while (cursor.next()) {
+            if (block.isEmpty()) block.setFirstOffset(cursor.getOffset());//块开头可能有跳过的目录项
+            block.add(cursor.toEntry());
         }
-        return block;//返回的这个块并非原原本本磁盘读出来的， 而是把已经删除的目录项去掉后 和 文件名还原后的
+        return block;
+    }
+
+    //把目录块整块读进本线程的缓冲区, 返回指向它的游标, 在下一次用缓冲区之前有效
+    private DirectoryCursor readCursor(int block) throws IOException {
+        ByteBuffer buffer = scratch(blockSize);
+        DEVICE.read(getDataBlockOffset(block), buffer);
+        return new DirectoryCursor(buffer, blockSize, inodeTable);
+    }
+
+    //在一个目录块中找名为 name 的目录项, 只为找到的那一项创建对象
+    private DirectoryEntry findInBlock(int block, String name) throws IOException {
+        byte nameBytes[] = name.getBytes();
+        DirectoryCursor cursor = readCursor(block);
+        while (cursor.next()) {
+            if (cursor.nameEquals(nameBytes)) return cursor.toEntry();
+        }
+        return null;
     }
 
     //新建目录时，为新的目录申请节点，申请块，添加  .  和 .. 目录项
@@ -253,12 +710,14 @@ public class FileSystem {
         if (currentDir.findEntry(name) != null) {
             throw new IllegalArgumentException("已存在相同的文件名!");
         }
-        int dirInode = BitUtils.nextClearBitThenSet(INODE_BITMAP);//由节点位示图获取一个空闲节点号
+        checkSpace(1 + entryBlocksNeeded(name), 1);//新目录的块, 父目录可能还要一个块放目录项
+        int group = getInodeGroup(currentDir.getInode());//新目录放在父目录所在的块组
+        int dirInode = allocateInode(group);//由节点位示图获取一个空闲节点号
         addDirectoryEntry(dirInode, DirectoryEntry.DIRECTORY, name);//原来（当前）目录下也要添加一个目录项，这个目录项指向申请到的节点号的节点
 
 
         //  以下操作为新目录所需要的操作
-        int dirBlock = BitUtils.nextClearBitThenSet(DATA_BITMAP);//由数据块位示图获取一个空闲块号
+        int dirBlock = allocateBlock(getInodeGroup(dirInode));//由数据块位示图获取一个空闲块号, 和节点在同一个块组
         Inode inode = new Inode(dirInode, Inode.DIRECTORY);//由节点号新建一个节点对象
         inode.addBlocks(dirBlock);//将块号添加到节点的直接指针位置
         inodeTable.put(dirInode, inode);//将(节点号,节点)添加到节点表
@@ -271,107 +730,375 @@ public class FileSystem {
         self = new DirectoryEntry(dirInode, DirectoryEntry.DIRECTORY, ".");
         parent = new DirectoryEntry(parentInode, DirectoryEntry.DIRECTORY, "..");
 
-        DirectoryBlock block = new DirectoryBlock(dirBlock);//没用这行
+        DirectoryBlock block = new DirectoryBlock(dirBlock, blockSize);//没用这行
         block.addEntry(self);//没用这行
         block.addEntry(parent);//没用这行
 
         //写节点, 和 它的目录项到磁盘
-        DISK.seek(getInodeOffset(dirInode));//指针移动到该节点号
-        DISK.write(inode.toByteArray());//写入节点数据
-        DISK.seek(getDataBlockOffset(dirBlock));//指针移动到该块号
-        DISK.write(self.toByteArray());//写入目录项
-        DISK.write(parent.toByteArray());
+        writeInode(inode);//写入节点数据
+        writeEntries(getDataBlockOffset(dirBlock), self, parent);//写入目录项
 
 
         writeBitmaps();//更新位示图
     }
 
 
+    //在当前目录添加名为 name 的目录项要新申请的块数, 包括目录变大后要的间接块
+    //要分叶子块时先试着分一次, 索引已满或哈希值冲突太多时在这里抛出异常; 调用者在申请节点和块之前调用, 失败时什么都没改
+    private int entryBlocksNeeded(String name) {
+        DirectoryEntry entry = new DirectoryEntry(0, DirectoryEntry.FILE, name);
+        int blocks;
+        if (currentDir.getIndex() != null) {//叶子块放不下时分出一个叶子块, 索引可能还要加一层或分出一个索引块
+            DirectoryBlock leaf = currentDir.getLeaf(name);
+            blocks = leaf.getFreeLength() >= entry.getIdealLen() ? 0 : 3;
+            if (blocks > 0) {
+                currentDir.getIndex().checkSplit(DirectoryIndex.hash(name));
+                checkSplitEntries(leaf, 0, entry);
+            }
+        } else if (currentDir.findBlockWithSpace(entry.getIdealLen()) != null) {
+            blocks = 0;
+        } else if (canIndex(currentDir)) {//改为有索引的目录时要两个叶子块
+            blocks = 2;
+            checkSplitEntries(currentDir.get(0), 2, entry);//. 和 .. 留在第一块
+        } else {
+            blocks = 1;
+        }
+        int count = currentDir.size();
+        return blocks + indirectBlocks(count + blocks) - indirectBlocks(count);
+    }
+
     //新添加目录后， 当前目录下也需要一个目录项
     private void addDirectoryEntry(int inodeNumber, byte type, String name) throws IOException {
-        // 只有最后一个目录块是可写的，前面的块应该都是写满了目录项
-        DirectoryBlock lastBlock = currentDir.getLastBlock();
-
         DirectoryEntry entry = new DirectoryEntry(inodeNumber, type, name);//新建一个目录项对象
-        if (lastBlock.getRemainingLength() >= entry.getIdealLen()) {//块剩余的长度大于等于目录项总(理想)长度
-            DirectoryEntry prevEntry = lastBlock.getLastEntry();//获取块中最后一个目录项
-            int prevEntryOffset = lastBlock.getLength() - prevEntry.getIdealLen();//计算先前目录项的开始偏移量: 块已用长度 - 最后一个目录项真实长度
-            lastBlock.addEntry(entry);//将目录项填加到块中, 当前目录要显示新添加的目录项
-
-            //更新前一个目录项的记录长度是在addEntry方法中实现了,所以要更新到磁盘先前的目录项,再写新填的目录项
-            DISK.seek(getDataBlockOffset(lastBlock.getBlock()) + prevEntryOffset);//计算先前一个目录块的磁盘偏移量
-            DISK.write(prevEntry.toByteArray());
-            DISK.write(entry.toByteArray());
+        Inode inode = inodeTable.get(currentDir.getInode());//当前目录节点
+        DENTRIES.invalidate(inode.getInode(), name);//可能缓存了这个名字不存在
+        if (currentDir.getIndex() != null) {
+            addIndexedEntry(inode, entry);
+            return;
+        }
+
+        //按空闲空间表找一个有空隙的块, 删除目录项留下的空隙也能再用
+        DirectoryBlock target = currentDir.findBlockWithSpace(entry.getIdealLen());
+        if (target != null) {
+            insertEntry(target, entry);
+        } else if (canIndex(currentDir)) {
+            makeIndexed(inode, entry);//第一块满了, 改为有哈希索引的目录
         } else {
-            // 新的目录项不能装到这个块中, 新申请一个块
-            int newBlock = BitUtils.nextClearBitThenSet(DATA_BITMAP);//获取下一个空闲块号
-            Inode inode = inodeTable.get(currentDir.getInode());//获取当前目录节点
-            inode.addBlocks(newBlock);//将新块添加到节点
+            // 新的目录项哪个块都放不下, 新申请一个块
+            growDirectory(inode, 1);
+            insertEntry(currentDir.getLastBlock(), entry);//把目录项写到新申请到的块
+            writeInode(inode);//更新当前目录节点到磁盘
+        }
+    }
+
+    //把目录项放进块中的空隙: 块开头的空隙, 或某个目录项多出的记录长度; 改动的目录项一次写回
+    private void insertEntry(DirectoryBlock block, DirectoryEntry entry) throws IOException {
+        int slot = block.findSlot(entry.getIdealLen());
+        long blockOffset = getDataBlockOffset(block.getBlock());
+        if (slot == -1) {//放在块开头, 记录长度到原来的第一个目录项为止
+            entry.setRecLen((short) block.getLeadingGap());
+            block.add(0, entry);
+            block.setFirstOffset(0);
+            writeEntries(blockOffset, entry);
+        } else {//前一个目录项的记录长度改为理想长度, 多出的部分给新目录项
+            DirectoryEntry prevEntry = block.get(slot);
+            int prevOffset = block.getOffset(slot);
+            entry.setRecLen((short) (prevEntry.getRecLen() - prevEntry.getIdealLen()));
+            prevEntry.setRecLen(prevEntry.getIdealLen());
+            block.add(slot + 1, entry);
+            writeEntries(blockOffset + prevOffset, prevEntry, entry);
+        }
+        currentDir.updateFreeSpace(block);
+    }
+
+    //只有一块的目录满了时是否改为有哈希索引的目录: 要用 -dirindex 挂载, 并且节点有标志位(128字节的节点)
+    private boolean canIndex(Directory directory) {
+        return OPTIONS.isDirIndex() && superblock.getInodeSize() > Inode.BASIC_RECORD_SIZE && directory.size() == 1;
+    }
+
+    //当前目录在末尾加 n 个空的目录块, 缺少的间接块一起申请; 目录大小改为块数 * 块大小, 节点由调用者写回
+    private void growDirectory(Inode inode, int n) throws IOException {
+        if (n == 0) return;
+        int count = currentDir.size();
+        int group = getInodeGroup(inode.getInode());//和目录节点在同一个块组, 尽量接在目录最后一块后面, 间接块接在新块后面
+        int blocks[] = allocateBlocks(group, n, count > 0 ? currentDir.get(count - 1).getBlock() + 1 : 0);
+        int pool[] = allocateBlocks(group, indirectBlocks(count + n) - indirectBlocks(count), blocks[n - 1] + 1);
+        mapBlocks(inode, count, blocks, pool);
+        inode.setSize((count + n) * blockSize);
+        BLOCK_MAPS.invalidate(inode.getInode());
+        for (int block : blocks) {
+            currentDir.add(new DirectoryBlock(block, blockSize));
+        }
+    }
 
-            DirectoryBlock block = new DirectoryBlock(newBlock);//new一个块
-            block.addEntry(entry);//把目录项添加到块
-            currentDir.add(block);//把块给到当前目录
+    //第一块放不下时把目录改为有哈希索引: 原来的目录项和新目录项按哈希值分到两个新的叶子块, 第一块改为索引根
+    private void makeIndexed(Inode inode, DirectoryEntry entry) throws IOException {
+        DirectoryBlock first = currentDir.get(0);
+        List<DirectoryEntry> entries = new ArrayList<>(first.subList(2, first.size()));//. 和 .. 留在第一块
+        entries.add(entry);
+        int split = splitEntries(entries);
+        growDirectory(inode, 2);
+        currentDir.get(1).addAll(entries.subList(0, split));
+        currentDir.get(2).addAll(entries.subList(split, entries.size()));
+        writeLeaf(currentDir.get(1));
+        writeLeaf(currentDir.get(2));
+
+        first.subList(2, first.size()).clear();
+        currentDir.setIndex(DirectoryIndex.create(blockSize, 1, DirectoryIndex.hash(entries.get(split).getFilename()), 2));
+        inode.setFlags(inode.getFlags() | Inode.INDEX_FLAG);
+        writeIndexBlock(0);
+        writeInode(inode);
+    }
 
-            //更新当前目录节点到磁盘
-            DISK.seek(getInodeOffset(inode.getInode()));//计算偏移量
-            DISK.write(inode.toByteArray());//写节点进磁盘
+    //在有索引的目录中添加目录项: 放进哈希值对应的叶子块, 放不下时把叶子块按哈希值分成两块, 再把新的叶子块登记到索引
+    private void addIndexedEntry(Inode inode, DirectoryEntry entry) throws IOException {
+        DirectoryIndex index = currentDir.getIndex();
+        int hash = DirectoryIndex.hash(entry.getFilename());
+        DirectoryBlock leaf = currentDir.get(index.findLeaf(hash));
+        if (leaf.findSlot(entry.getIdealLen()) != -2) {//有放得下的空隙, 原地插入, 其余目录项不动
+            insertEntry(leaf, entry);
+            return;
+        }
+        if (leaf.getFreeLength() >= entry.getIdealLen()) {//空隙都太小, 整块重新排列
+            leaf.add(entry);
+            writeLeaf(leaf);
+            return;
+        }
+        index.checkSplit(hash);
+        List<DirectoryEntry> entries = new ArrayList<>(leaf);
+        entries.add(entry);
+        int split = splitEntries(entries);
+
+        int upperLogical = currentDir.size();
+        growDirectory(inode, 1);
+        DirectoryBlock upper = currentDir.get(upperLogical);
+        upper.addAll(entries.subList(split, entries.size()));
+        leaf.clear();
+        leaf.addAll(entries.subList(0, split));
+        writeLeaf(leaf);
+        writeLeaf(upper);
+
+        int next[] = {currentDir.size()};//索引要新的索引块时依次用后面的逻辑块
+        Set<Integer> dirty = index.addLeaf(DirectoryIndex.hash(upper.get(0).getFilename()), upperLogical, () -> next[0]++);
+        growDirectory(inode, next[0] - currentDir.size());
+        for (int logical : dirty) {
+            writeIndexBlock(logical);
+        }
+        writeInode(inode);
+    }
 
-            //将新目录项写入磁盘, 写到新申请到的块
-            DISK.seek(getDataBlockOffset(newBlock));//计算块偏移量
-            DISK.write(entry.toByteArray());//将目录项写进磁盘
+    //块中从第 from 项开始的目录项加上 entry 能不能分成两个叶子块, 不能时抛出异常; 只在副本上分, 不改块
+    private void checkSplitEntries(DirectoryBlock block, int from, DirectoryEntry entry) {
+        List<DirectoryEntry> entries = new ArrayList<>(block.subList(from, block.size()));
+        entries.add(entry);
+        splitEntries(entries);
+    }
+
+    //把目录项按哈希值排序后按长度分成两半, 哈希值相同的不分开; 返回后一半第一项的下标
+    private int splitEntries(List<DirectoryEntry> entries) {
+        entries.sort(Comparator.comparingInt(entry -> DirectoryIndex.hash(entry.getFilename())));
+        int hashes[] = entries.stream().mapToInt(entry -> DirectoryIndex.hash(entry.getFilename())).toArray();
+        int total = 0;
+        for (DirectoryEntry entry : entries) total += entry.getIdealLen();
+        int split = 1, length = entries.get(0).getIdealLen();
+        while (split < entries.size() - 1 && length + entries.get(split).getIdealLen() <= total / 2) {
+            length += entries.get(split++).getIdealLen();
+        }
+        int boundary = split;
+        while (boundary < entries.size() && hashes[boundary] == hashes[boundary - 1]) boundary++;
+        if (boundary == entries.size()) {
+            boundary = split;
+            while (boundary > 0 && hashes[boundary] == hashes[boundary - 1]) boundary--;
         }
+        length = 0;
+        for (int i = 0; i < boundary; i++) length += entries.get(i).getIdealLen();
+        if (boundary == 0 || length > blockSize || total - length > blockSize) {
+            throw new IllegalArgumentException("目录项的哈希值冲突太多, 叶子块无法分开");
+        }
+        return boundary;
     }
 
+    //整理当前目录: 全部目录项按原来的顺序紧凑地重新排进前面的块, 释放排完后多出来的块和用不到的间接块
+    //删除留下的空隙多了以后, 查找和列目录要读的块变少; 有索引的目录不整理, 它的目录项只在所属的叶子块里
+    public String compactDirectory() throws IOException {
+        if (currentDir.getIndex() != null) {
+            return "有哈希索引的目录, 叶子块的空隙在添加时重用, 放不下时整块重排, 不用整理";
+        }
+        List<List<DirectoryEntry>> packed = new ArrayList<>();
+        int length = blockSize, entries = 0;
+        for (DirectoryBlock block : currentDir) {
+            for (DirectoryEntry entry : block) {
+                if (length + entry.getIdealLen() > blockSize) {
+                    packed.add(new ArrayList<>());
+                    length = 0;
+                }
+                packed.get(packed.size() - 1).add(entry);
+                length += entry.getIdealLen();
+                entries++;
+            }
+        }
+        int oldCount = currentDir.size(), newCount = packed.size();
+        if (newCount == oldCount) {
+            return String.format("目录有 %d 个目录项, %d 个目录块, 不能再少, 不用整理", entries, oldCount);
+        }
+
+        Inode inode = inodeTable.get(currentDir.getInode());
+        int blocks[] = blockMap(inode).clone();
+        int freeBefore = getFreeBlockCount();
+        Directory directory = new Directory();
+        for (int b = 0; b < newCount; b++) {//重写前面的块
+            DirectoryBlock block = new DirectoryBlock(blocks[b], blockSize);
+            block.addAll(packed.get(b));
+            writeLeaf(block);
+            directory.add(block);
+        }
 
+        //释放后面的块和全部间接块, 再把留下的块重新登记, 间接块按新的块数申请
+        forEachBlock(inode, block -> {}, this::freeBlock);
+        for (int b = newCount; b < oldCount; b++) {
+            freeBlock(blocks[b]);
+        }
+        inode.clearPointers();
+        for (int level = 1; level <= (superblock.getInodeSize() > Inode.BASIC_RECORD_SIZE ? 3 : 1); level++) {
+            inode.setIndirectPointer(level, 0);
+        }
+        mapBlocks(inode, 0, Arrays.copyOf(blocks, newCount), allocateBlocks(getInodeGroup(inode.getInode()), indirectBlocks(newCount), blocks[newCount - 1] + 1));
+        if (inode.getSize() > 0) inode.setSize(newCount * blockSize);//以前的目录大小为0, 块数由直接指针算出
+        BLOCK_MAPS.invalidate(inode.getInode());
+        writeInode(inode);
+        writeBitmaps();
+        currentDir = directory;
+        return String.format("整理目录: %d 个目录项, 目录块 %d -> %d, 释放 %d 块", entries, oldCount, newCount, getFreeBlockCount() - freeBefore);
+    }
 
+    //把叶子块的全部目录项紧凑地重写一遍(最后一项的记录长度到块尾), 没有目录项时写一个节点号为0的空目录项
+    private void writeLeaf(DirectoryBlock leaf) throws IOException {
+        leaf.setFirstOffset(0);
+        ByteBuffer buffer = scratch(blockSize);
+        Arrays.fill(buffer.array(), 0, blockSize, (byte) 0);
+        int position = 0;
+        for (int i = 0; i < leaf.size(); i++) {
+            DirectoryEntry entry = leaf.get(i);
+            entry.setRecLen((short) (i == leaf.size() - 1 ? blockSize - position : entry.getIdealLen()));
+            position = entry.writeTo(buffer, position);
+        }
+        if (leaf.isEmpty()) buffer.putShort(4, (short) blockSize);
+        DEVICE.write(getDataBlockOffset(leaf.getBlock()), buffer);
+    }
+
+    //把当前目录逻辑块 logical 上的索引写回磁盘, 第0块先写 . 和 .. (.. 的记录长度到块尾)
+    private void writeIndexBlock(int logical) throws IOException {
+        ByteBuffer buffer = scratch(blockSize);
+        Arrays.fill(buffer.array(), 0, blockSize, (byte) 0);
+        if (logical == 0) {
+            DirectoryEntry self = currentDir.get(0).get(0), parent = currentDir.get(0).get(1);
+            self.setRecLen(self.getIdealLen());
+            parent.setRecLen((short) (blockSize - self.getIdealLen()));
+            parent.writeTo(buffer, self.writeTo(buffer, 0));
+        }
+        currentDir.getIndex().writeTo(logical, buffer);
+        DEVICE.write(getDataBlockOffset(currentDir.get(logical).getBlock()), buffer);
+    }
+
+    //读出目录的全部目录块, 有哈希索引时同时载入索引根和索引块
+    public Directory readDirectory(Inode inode) throws IOException {
+        Directory directory = new Directory();
+        int blocks[] = blockMap(inode);
+        for (int block : blocks) {
+            directory.add(readDirectoryBlock(block));
+        }
+        if (inode.hasFlag(Inode.INDEX_FLAG)) {
+            directory.setIndex(readIndex(blocks));
+        }
+        return directory;
+    }
+
+    //读目录的索引根和索引块, blocks 是目录按逻辑块顺序的块号
+    private DirectoryIndex readIndex(int blocks[]) throws IOException {
+        ByteBuffer buffer = scratch(blockSize);
+        DEVICE.read(getDataBlockOffset(blocks[0]), buffer);
+        DirectoryIndex index = DirectoryIndex.readRoot(buffer, blockSize);
+        for (int logical : index.getNodeBlocks()) {
+            buffer = scratch(blockSize);
+            DEVICE.read(getDataBlockOffset(blocks[logical]), buffer);
+            index.readNode(logical, buffer);
+        }
+        return index;
+    }
+
+    //流式列目录(readdir): 从 cookie 处开始一次读一个目录块, 把最多 limit 个目录项依次交给 consumer, 游标只在回调中有效
+    //cookie 高32位是逻辑块号, 低32位是块内偏移量, 0 表示从头开始; 返回下一页的 cookie, 读完了返回 -1
+    //每块都从头解析, 跳过偏移量小于 cookie 的目录项, 两页之间目录改动(如整理)后也不会从半个目录项开始读
+    public long readdir(int dirInode, long cookie, int limit, Consumer<DirectoryCursor> consumer) throws IOException {
+        Inode inode = inodeTable.get(dirInode);
+        int count = blockCount(inode);
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);//回调里可能用到本线程的缓冲区, 不用 scratch
+        int offset = (int) cookie;
+        for (int logical = (int) (cookie >>> 32); logical < count; logical++, offset = 0) {
+            buffer.clear();
+            DEVICE.read(getDataBlockOffset(mapBlock(inode, logical)), buffer);
+            DirectoryCursor cursor = new DirectoryCursor(buffer, blockSize, inodeTable);
+            while (cursor.next()) {
+                if (cursor.getOffset() < offset) continue;
+                if (limit-- == 0) return ((long) logical << 32) | cursor.getOffset();
+                consumer.accept(cursor);
+            }
+        }
+        return -1;
+    }
+
+    //在目录 parent 中找名为 name 的目录项, 没有返回 null; 先查目录项缓存, 当前目录已经在内存里
+    //其他目录不整个载入: 有索引时只读索引和一个叶子块, 没有索引时逐块读到找到为止
+    public DirectoryEntry lookup(int parent, String name) throws IOException {
+        DirectoryEntry entry = DENTRIES.get(parent, name);
+        if (entry != null) return entry == DentryCache.NEGATIVE ? null : entry;
+        if (currentDir != null && parent == currentDir.getInode()) {
+            entry = currentDir.findEntry(name);
+        } else {
+            Inode inode = inodeTable.get(parent);
+            int blocks[] = blockMap(inode);
+            if (inode.hasFlag(Inode.INDEX_FLAG)) {
+                int logical = DirectoryIndex.inRoot(name) ? 0 : readIndex(blocks).findLeaf(DirectoryIndex.hash(name));
+                entry = findInBlock(blocks[logical], name);
+            } else {
+                for (int i = 0; i < blocks.length && entry == null; i++) {
+                    entry = findInBlock(blocks[i], name);
+                }
+            }
+        }
+        DENTRIES.put(parent, name, entry);
+        return entry;
+    }
+
+
+
+    //按路径切换当前目录, 路径上的目录经目录项缓存逐级查找, 只读入最后到达的目录
     public void goToDirectory(String path) throws IOException {
-        Directory initialDir = (path.startsWith("/")) ? getRoot() : currentDir;//获取初始目录, 目录是否时/开头,是就返回根目录, 否则当前目录
-        DirectoryEntry entry = null;
+        int dirInode = (path.startsWith("/")) ? ROOT_INODE : currentDir.getInode();//初始目录, 目录是否时/开头,是就从根目录开始, 否则从当前目录开始
+        int target = currentDir.getInode();//最后找到的目录
         ArrayList<String> entries = Utils.splitPath(path);//分割路径
         for (int i = 0; i < entries.size(); i++) {
-            String name = entries.get(i);
-            entry = initialDir.findEntry(name);//在初始目录下查找目录项, 每循环一次初始目录进一层
-            if (entry != null) {//找到了
-                if (entry.getType() == DirectoryEntry.DIRECTORY) {//判断找到的类型是否是目录,而不是文件等其他的
-                    Directory directory = new Directory();//新建一个目录对象
-                    ArrayList<Integer> dirBlocks;//目录块列表
-                    int inodeNumber = entry.getInode();//获取目录节点号
-                    Inode inode = inodeTable.get(inodeNumber);//查找节点表, 得到节点
-                    dirBlocks = inode.getDirectBlocks();//由节点获取全部的目录块号
-
-                    ///遍历目录块号, 读取目录块
-                    for (int block : dirBlocks) {
-                        directory.add(readDirectoryBlock(block));
-                    }
-
-                    initialDir = directory;
-                    currentDir = initialDir;
-                }
+            DirectoryEntry entry = lookup(dirInode, entries.get(i));//在初始目录下查找目录项, 每循环一次初始目录进一层
+            if (entry != null && entry.getType() == DirectoryEntry.DIRECTORY) {//找到了, 而且是目录, 而不是文件等其他的
+                dirInode = entry.getInode();
+                target = dirInode;
             }
         }
+        if (target != currentDir.getInode()) {
+            currentDir = readDirectory(inodeTable.get(target));//读取全部目录块
+        }
     }
 
-    //在给定路径下查找目录项
+    //在给定路径下查找目录项, 只查目录项缓存和路径上各目录的一个块(或几个块), 不载入整个目录
     public DirectoryEntry findEntry(String path) throws IOException {
-        Directory initialDir = (path.startsWith("/")) ? getRoot() : currentDir;//获取初始目录
+        int dirInode = (path.startsWith("/")) ? ROOT_INODE : currentDir.getInode();//初始目录
         DirectoryEntry entry = null;
         ArrayList<String> entries = Utils.splitPath(path);//分割路径
         for (int i = 0; i < entries.size(); i++) {//在初始目录下查找目录项, 每循环一次初始目录进一层
-            String name = entries.get(i);
-            entry = initialDir.findEntry(name);
+            entry = lookup(dirInode, entries.get(i));
             if (entry != null) {
                 if (entry.getType() == DirectoryEntry.DIRECTORY) {
-                    Directory directory = new Directory();
-                    ArrayList<Integer> dirBlocks;
-                    int inodeNumber = entry.getInode();
-                    Inode inode = inodeTable.get(inodeNumber);
-                    dirBlocks = inode.getDirectBlocks();
-
-                    for (int block : dirBlocks) {
-                        directory.add(readDirectoryBlock(block));
-                    }
-
-                    initialDir = directory;
+                    dirInode = entry.getInode();
                 } else {
                     // 它是一个文件，所以没有目录条目。检查它是否是路径中的最后一个元素
                     return (i == entries.size() - 1) ? entry : null;
@@ -387,16 +1114,18 @@ public class FileSystem {
         DirectoryBlock block;//块
         DirectoryEntry entry;//目录项
         Inode inode;//节点
+        if (DirectoryIndex.inRoot(name)) return false;//. 和 .. 不能删, 有索引的目录删了会把索引根当叶子块重写
         if ((block = currentDir.getBlockContaining(name)) != null) {//找当前目录下存这个文件项的块
             for (int i = 0; i < block.size(); i++) {
                 entry = block.get(i);//拿出这个文件项
                 if (entry.getFilename().equals(name)) {
 
                     inode = inodeTable.get(entry.getInode());//这个项的节点
+                    DENTRIES.invalidate(currentDir.getInode(), name);
 
                     //如果这个目录项是一个目录,检测它是否是空目录
                     if (entry.getType() == DirectoryEntry.DIRECTORY) {
-                        for (int index : inode.getDirectBlocks()) {
+                        for (int index : blockMap(inode)) {
                             if (readDirectoryBlock(index).hasEntries()) {
                                 throw new IllegalArgumentException("目录不为空不能删除!");
                             }
@@ -404,43 +1133,35 @@ public class FileSystem {
                     }
 
                     if (inode.getLinkCount() == 1) {
-                        for (int index : inode.getDirectBlocks()) {//获取节点的直接指针块
-                            BitUtils.clearBit(index, DATA_BITMAP);//清除直接指针块占用
-                        }
-
-                        // 检查是否由间接指针
-                        int indirectPointer = inode.getIndirectPointer();//间接指针
-                        ArrayList<Integer> references;
-                        if (indirectPointer != 0) {
-                            int referenceCount = (int) Math.ceil(inode.getSize() / (double) BLOCK_SIZE) - 12;//这种计算方式只针文件类型有效, 目录类型是没有size的
-                            references = readIndirectPointer(indirectPointer, referenceCount);//读取间接指针中指向的块中存的间接指针
-                            BitUtils.clearBit(indirectPointer, DATA_BITMAP);//清除间接指针
-                            for (int index : references) {
-                                BitUtils.clearBit(index, DATA_BITMAP);//清除间接指针指向的块
-                            }
-                        }
+                        //释放全部数据块和各级间接块
+                        forEachBlock(inode, this::freeBlock, this::freeBlock);
+                        BLOCK_MAPS.invalidate(inode.getInode());
+                        DENTRIES.invalidateDirectory(inode.getInode());
 
                         // 在inode位图中清除此inode的位，并设置其删除时间，然后将其写入磁盘
-                        BitUtils.clearBit(inode.getInode(), INODE_BITMAP);//清除节点表占用
+                        freeInode(inode.getInode());//清除节点表占用
                         inode.setDeletionTime(toIntExact(System.currentTimeMillis() / 1000));//设置删除时间
                         inode.setLinkCount(0);//设置链接数量为0
-                        DISK.seek(getInodeOffset(inode.getInode()));
-                        DISK.write(inode.toByteArray());
+                        writeInode(inode);
 
                         writeBitmaps();
                     }
-                    if (i == 0) {
-                        DISK.seek(getDataBlockOffset(block.getBlock()));//如果这个目录项写在这个块的第一个, 将指针移动到该数据块开头
-                    } else {
+                    //有索引的目录的叶子块也原地删除, 其余目录项的位置不变, readdir 的 cookie 仍然有效
+                    if (i != 0) {
                         //更新前一个目录项的记录长度,使其覆盖掉删除的目录项, 达到假删除的目的
                         DirectoryEntry previous = block.get(i - 1);//获取前一个目录项
                         int recLen = previous.getRecLen() + entry.getRecLen();//前一个目录项的长度+被删除目录项的长度
                         int prevOffset = block.getOffset(i - 1);//从0到前一个目录项的偏移量
                         previous.setRecLen((short) recLen);//使前一个目录项长度变长
-                        DISK.seek(getDataBlockOffset(block.getBlock()) + prevOffset);//移到前一个目录项指针开头
-                        DISK.write(previous.toByteArray());//重新将前一个目录项写入
+                        writeEntries(getDataBlockOffset(block.getBlock()) + prevOffset, previous);//重新将前一个目录项写入
+                    } else {
+                        //块的第一个目录项前面没有目录项可以合并, 改为节点号为0的空目录项, 和块开头原来的空隙合在一起
+                        int gap = block.getOffset(0) + entry.getRecLen();
+                        writeEntries(getDataBlockOffset(block.getBlock()), new DirectoryEntry(0, (short) gap, (byte) 0, ""));
+                        block.setFirstOffset(gap);
                     }
                     block.remove(i);
+                    currentDir.updateFreeSpace(block);
                     return true;
                 }
             }
@@ -455,52 +1176,58 @@ public class FileSystem {
             throw new IllegalArgumentException("该目录下已经存在该文件!");
         }
 
-        //将文件字节分割为4KB的组，并将每个组写入磁盘(每个组一个块)
-        byte content[][] = BitUtils.splitBytes(text.getBytes(), BLOCK_SIZE);//将内容分组, 每组大小等于1个块
-        int blocksNeeded = content.length;// 一共需要多少个块
-
-        byte direct[][] = (blocksNeeded > 12) ? Arrays.copyOfRange(content, 0, 12) : content;//存到直接指针指向的块的内容
-
-        byte indirect[][] = (blocksNeeded > 12) ? Arrays.copyOfRange(content, 12, blocksNeeded) : null;//存到间接指针指向的块的内容
-
-        // 首先添加直接指针
-        int directBlocks[] = new int[direct.length];//用来存申请到的空闲块号
-        for (int i = 0; i < direct.length; i++) {
-            byte group[] = direct[i];//要写入的内容,大小为切割好的一个块大小
-            int blockNumber = BitUtils.nextClearBitThenSet(DATA_BITMAP);//申请一个空闲块
-            directBlocks[i] = blockNumber;
-            DISK.seek(getDataBlockOffset(blockNumber));
-            DISK.write(group);//将这组(块大小)文字写入磁盘
+        byte data[] = text.getBytes();
+        if (data.length <= inlineCapacity()) {
+            writeInlineFile(fileName, data);
+            return;
         }
+        int blocksNeeded = (data.length + blockSize - 1) / blockSize;// 一共需要多少个数据块
+        boolean extents = useExtents();
+        //指针模式: 各级间接块的个数, 文件太大时抛出异常; 区段模式: 按每块一个区段算的最多区段块数, 实际按区段数申请
+        int indirectNeeded = extents ? 0 : indirectBlocks(blocksNeeded);
+        int metadataReserved = extents ? extentTreeBlocks(blocksNeeded) : indirectNeeded;
+        checkSpace(blocksNeeded + metadataReserved + entryBlocksNeeded(fileName), 1);//先检查空间, 不够时什么都不改
+
+        //先在父目录所在的块组申请节点, 数据块放在节点所在的块组
+        int inodeNumber = allocateInode(getInodeGroup(currentDir.getInode()));
+        int group = getInodeGroup(inodeNumber);
+
+        //一次申请全部的块, 按 数据块 | 间接块 排列, 数据块尽量连续, 连续的块一次写入
+        int blocks[] = allocateBlocks(group, blocksNeeded + indirectNeeded);
+        int dataBlocks[] = Arrays.copyOfRange(blocks, 0, blocksNeeded);
+        writeBlocks(dataBlocks, data, 0);
+
+        //创建一个新节点给这个文件, 把数据块按逻辑块号登记到直接指针和各级间接块中, 再写入磁盘
+        Inode inode = new Inode(inodeNumber, Inode.FILE, data.length);
+        BLOCK_MAPS.invalidate(inodeNumber);//节点号可能是刚删除的文件用过的
+        if (extents) inode.setFlags(Inode.EXTENTS_FLAG);
+        inodeTable.put(inodeNumber, inode);
+        if (extents) {
+            appendExtents(inode, 0, dataBlocks, new ArrayList<>(), new ArrayList<>());
+        } else {
+            mapBlocks(inode, 0, dataBlocks, Arrays.copyOfRange(blocks, blocksNeeded, blocks.length));
+        }
+        writeInode(inode);
 
-        //写入间接指针指向的块, 如果有必要的话
-        ArrayList<Integer> references;
-        int indirectPointer = 0;
-        if (indirect != null) {//判断是否有必要
-            indirectPointer = BitUtils.nextClearBitThenSet(DATA_BITMAP);//申请一个空闲块,用来存间接指针
-            references = new ArrayList<>();
-            for (byte[] group : indirect) {//遍历要写入到间接指针指向的块中的每个分组
-                int block = BitUtils.nextClearBitThenSet(DATA_BITMAP);//申请一个空闲块,用来存写入的文字
-                references.add(block);
-                DISK.seek(getDataBlockOffset(block));
-                DISK.write(group);
-            }
+        addDirectoryEntry(inodeNumber, DirectoryEntry.FILE, fileName);
+        writeBitmaps();
+    }
 
-            // 将申请到的间接指针写入到磁盘
-            DISK.seek(getDataBlockOffset(indirectPointer)); //一个块4k, 一个间接指针4字节, 最多写1024个间接指针, 多了会占用下一个块出bug
-            for (int reference : references) {
-                DISK.write(Ints.toByteArray(reference));
-            }
-        }
+    //能内嵌在节点里的最大文件字节数, 旧格式的节点没有标志位, 不能内嵌
+    private int inlineCapacity() {
+        int inodeSize = superblock.getInodeSize();
+        return inodeSize > Inode.BASIC_RECORD_SIZE ? Inode.URL_LENGTH + Math.max(0, inodeSize - Inode.RECORD_SIZE) : -1;
+    }
 
-        //创建一个新节点给这个文件, 并写入磁盘
-        int inodeNumber = BitUtils.nextClearBitThenSet(INODE_BITMAP);
-        Inode inode = new Inode(inodeNumber, Inode.FILE, text.getBytes().length);
-        inode.addBlocks(directBlocks);
-        if (indirectPointer != 0) inode.setIndirectPointer(indirectPointer);
+    //小文件的内容直接放在节点里, 不申请数据块, 只写一次节点
+    private void writeInlineFile(String fileName, byte data[]) throws IOException {
+        checkSpace(entryBlocksNeeded(fileName), 1);
+        int inodeNumber = allocateInode(getInodeGroup(currentDir.getInode()));
+        Inode inode = new Inode(inodeNumber, Inode.FILE, data.length);
+        inode.setFlags(Inode.INLINE_DATA_FLAG);
         inodeTable.put(inodeNumber, inode);
-        DISK.seek(getInodeOffset(inodeNumber));
-        DISK.write(inode.toByteArray());
+        inode.writeInlineData(0, data, 0, data.length);
+        writeInode(inode);
 
         addDirectoryEntry(inodeNumber, DirectoryEntry.FILE, fileName);
         writeBitmaps();
@@ -528,55 +1255,33 @@ public class FileSystem {
             return content;
         }
 
-        fileInode.setLastAccessTime(toIntExact(System.currentTimeMillis() / 1000));//更新访问时间
-        DISK.seek(getInodeOffset(fileInode.getInode()));
-        DISK.write(fileInode.toByteArray());
+        touchAccessTime(fileInode);//按挂载选项更新访问时间, 不马上写盘
 
-        ArrayList<Integer> directBlocks = fileInode.getDirectBlocks();
-        final int fileSize = fileInode.getSize();
-        final int maxDirectBytes = BLOCK_SIZE * 12;
-        byte directData[] = new byte[(fileSize > maxDirectBytes) ? maxDirectBytes : fileSize];
-
-        int offset = 0;
-        int len = (directData.length < BLOCK_SIZE) ? directData.length : BLOCK_SIZE;
-        //读取直接指针指向块中的数据
-        for (int block : directBlocks) {
-            DISK.seek(getDataBlockOffset(block));
-            DISK.read(directData, offset, len);
-
-            // 下一个块的偏移量
-            offset += BLOCK_SIZE;
-            len = (directData.length - offset >= BLOCK_SIZE) ? BLOCK_SIZE : directData.length - offset;
+        //按逻辑块顺序取出全部数据块号(先查块映射缓存), 再把连续的块一次读进来
+        byte data[] = new byte[fileInode.getSize()];
+        if (fileInode.hasFlag(Inode.INLINE_DATA_FLAG)) {//内容就在节点里
+            fileInode.readInlineData(data, 0, data.length);
+            return data;
         }
+        readBlocks(blockMap(fileInode), data, 0);
+        return data;
+    }
 
-        // 读取间接指针指向块中的数据
-        int indirectPointer;
-        if ((indirectPointer = fileInode.getIndirectPointer()) != 0) {
-            int remainingBytes = fileSize - maxDirectBytes;
-            byte indirectData[] = new byte[remainingBytes];
-
-            int referenceCount = (int) Math.ceil(fileSize / (double) BLOCK_SIZE) - 12;
-            ArrayList<Integer> references = readIndirectPointer(indirectPointer, referenceCount);
-
-            // 从数组的位置0开始写入，每个块最多读取4096个字节
-            offset = 0;
-            len = (remainingBytes > BLOCK_SIZE) ? BLOCK_SIZE : remainingBytes;
-            for (int reference : references) {
-                DISK.seek(getDataBlockOffset(reference));
-                DISK.read(indirectData, offset, len);
-
-                // 下一个块的偏移量
-                offset += BLOCK_SIZE;
-                len = (indirectData.length - offset >= BLOCK_SIZE) ? BLOCK_SIZE : indirectData.length - offset;
-            }
-            return Bytes.concat(directData, indirectData);
+    //文件按逻辑块顺序的全部数据块号, 没有缓存时遍历一次间接块(或区段)建立, 每个间接块只读一次
+    private int[] blockMap(Inode inode) throws IOException {
+        int blocks[] = BLOCK_MAPS.get(inode.getInode());
+        if (blocks == null || blocks.length != blockCount(inode)) {
+            int map[] = new int[blockCount(inode)];
+            int count[] = {0};
+            forEachBlock(inode, block -> map[count[0]++] = block, block -> {});
+            BLOCK_MAPS.put(inode.getInode(), map);
+            blocks = map;
         }
-        return directData;
+        return blocks;
     }
 
-    public boolean append(String fileName, String text) throws IOException {
+    public boolean append(String fileName, String text) throws IOException, IllegalArgumentException {
         byte content[] = text.getBytes();//字符转换成字节数组
-        int appendLength = content.length;//数组长度
         int inodeNumber;//节点号码
 
         try {
@@ -586,124 +1291,430 @@ public class FileSystem {
         }
 
         Inode inode = inodeTable.get(inodeNumber);//获取文件节点
-        final ArrayList<Integer> directBlocks = inode.getDirectBlocks();//获取12个直接指针
+        List<int[]> extents = new ArrayList<>();
+        List<Integer> treeBlocks = new ArrayList<>();
+        if (appendData(inode, content, false, extents, treeBlocks)) {
+            writeExtentTree(inode, extents, treeBlocks);
+        }
+        writeAppendModifiedDate(inode);
+        return true;
+    }
+
+    //新建空文件, 返回往里写内容的通道, 内容按块边写边分配, 关闭时写回节点; 要 OutputStream 时用 Channels.newOutputStream 包一层
+    public FileWriteChannel openForWrite(String fileName) throws IOException, IllegalArgumentException {
+        writeFile(fileName, "");//同名文件已存在时抛出异常
+        return new FileWriteChannel(this, inodeTable.get(currentDir.findEntry(fileName).getInode()), blockSize);
+    }
+
+    //往当前目录中已有的文件后面接着写的通道, 文件不存在返回 null
+    public FileWriteChannel openForAppend(String fileName) {
+        DirectoryEntry entry = currentDir.findEntry(fileName);
+        return entry == null ? null : new FileWriteChannel(this, inodeTable.get(entry.getInode()), blockSize);
+    }
+
+    //把 content 接到文件后面, 只改内存中的节点(大小和块指针), 节点和位示图由调用者写回
+    //区段模式下文件的区段表放在 extents 里(第一次用到时从区段树读出, 区段块记到 treeBlocks), 之后的追加只改这个表:
+    //区段不超过4个时直接改节点, 要用区段块时不写区段树, 返回 true, 由调用者最后调用 writeExtentTree 写一次
+    //streaming: 写通道不知道一共要写多少块, 文件的第一块从块组中最长的空闲区间开始放, 后面的块可以一直接在后面
+    boolean appendData(Inode inode, byte content[], boolean streaming, List<int[]> extents, List<Integer> treeBlocks) throws IOException, IllegalArgumentException {
+        final int inodeNumber = inode.getInode();
         final int fileSize = inode.getSize();//获取文件字节数
-        int freeBlocks = 12 - directBlocks.size();//获取12个直接指针中剩余的指针
-
-        int remainder = fileSize % BLOCK_SIZE; // 模运算, 计算上次最后一块占用的字节数
-        int lastBlockFreeBytes = (remainder == 0) ? 0 : BLOCK_SIZE - remainder;//上次最后一块剩余的字节数
-        int freeDirectBytes = freeBlocks * BLOCK_SIZE + lastBlockFreeBytes;//计算12个直接指针总剩余字节数
-
-        byte direct[];//存到直接指针的
-        byte indirect[];//存到间接指针的
-        if (appendLength < freeDirectBytes) {//要写入的小于剩余的直接指针字节数
-            // 不需要间接指针
-            direct = content;
-            indirect = null;//不需要间接指针
-        } else { //否则将写入的文章分组,一个组是写到直接指针的,另一个是写到间接指针的
-            direct = (freeDirectBytes > 0) ? Arrays.copyOfRange(content, 0, freeDirectBytes) : null;
-            indirect = (freeDirectBytes > 0) ? Arrays.copyOfRange(content, freeDirectBytes, appendLength) : content;
-        }
-
-        if (direct != null) {
-            if (lastBlockFreeBytes > 0) {
-                int lastBlock = directBlocks.get(directBlocks.size() - 1);//获取最后一个块
-                if (direct.length < lastBlockFreeBytes) {//不需要间接指针且不需要新的直接指针
-                    DISK.seek(getDataBlockOffset(lastBlock) + remainder);//移动指针到上次写的地址
-                    DISK.write(direct);//写到上次写的最后一块
-                    writeAppendModifiedDate(inode, appendLength);
-                    return true;
-                } else { //不需要间接指针但需要新的直接指针
-                    byte blockFill[] = Arrays.copyOfRange(direct, 0, lastBlockFreeBytes);//最后一块还可以写的
-                    direct = Arrays.copyOfRange(direct, lastBlockFreeBytes, direct.length);//要写到其它直接指针块
-                    DISK.seek(getDataBlockOffset(lastBlock) + remainder);//写到最后一块
-                    DISK.write(blockFill);//写还可以写入的
-                    remainder = 0;
+        if ((long) fileSize + content.length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("文件太大: 文件大小不能超过 " + Integer.MAX_VALUE + " 字节");
+        }
+
+        //内嵌在节点里的小文件: 追加后还放得下就只改节点; 放不下时连同原来的内容一起改为写到数据块
+        final boolean inline = inode.hasFlag(Inode.INLINE_DATA_FLAG);
+        if (inline && fileSize + content.length <= inode.getInlineCapacity()) {
+            inode.writeInlineData(fileSize, content, 0, content.length);
+            inode.setSize(fileSize + content.length);
+            return false;
+        }
+        byte data[] = content;//要写到数据块的内容
+        int oldSize = fileSize;//已经在数据块里的字节数
+        if (inline) {
+            data = new byte[fileSize + content.length];
+            inode.readInlineData(data, 0, fileSize);
+            System.arraycopy(content, 0, data, fileSize, content.length);
+            oldSize = 0;
+        }
+
+        //追加后文件占的块数减去现在的块数就是要新申请的数据块, 再加上新用到的各级间接块(或区段块), 写之前先检查
+        int oldBlockCount = (oldSize + blockSize - 1) / blockSize;
+        int newBlockCount = (int) (((long) oldSize + data.length + blockSize - 1) / blockSize);
+        boolean useExtents = inline ? useExtents() : inode.hasFlag(Inode.EXTENTS_FLAG);
+        if (useExtents && oldBlockCount > 0 && extents.isEmpty()) {
+            extents.addAll(readExtents(inode, treeBlocks::add));//现在的区段块, 重写区段树时先用它们
+        }
+        int indirectNeeded = useExtents ? 0 : indirectBlocks(newBlockCount) - indirectBlocks(oldBlockCount);
+        int metadataReserved = useExtents//区段树推迟写时也要给它留够块
+                ? Math.max(0, extentTreeBlocks(extents.size() + newBlockCount - oldBlockCount) - treeBlocks.size())
+                : indirectNeeded;
+        checkSpace(newBlockCount - oldBlockCount + metadataReserved, 0);
+        if (newBlockCount > oldBlockCount) {
+            BLOCK_MAPS.invalidate(inodeNumber);//要加新的块, 原来缓存的映射不能用了
+        }
+        if (inline) {//指针区不再放数据, 清0后按新文件的方式登记数据块
+            inode.setFlags(useExtents ? Inode.EXTENTS_FLAG : 0);
+            inode.clearPointers();
+        }
+
+        //先写满原来最后一块的剩余空间
+        int remainder = oldSize % blockSize; // 模运算, 计算上次最后一块占用的字节数
+        int filled = 0;//写到最后一块的字节数
+        int lastBlock = 0;//获取最后一个块, 区段模式下从区段表算, 推迟写的区段树里还没有后来的块
+        if (oldBlockCount > 0) {
+            int last[] = useExtents ? extents.get(extents.size() - 1) : null;
+            lastBlock = useExtents ? last[1] + last[2] - 1 : mapBlock(inode, oldBlockCount - 1);
+        }
+        if (remainder > 0 && data.length > 0) {
+            filled = Math.min(blockSize - remainder, data.length);
+            DEVICE.write(getDataBlockOffset(lastBlock) + remainder, ByteBuffer.wrap(data, 0, filled));
+        }
+
+        //剩下的一次申请所需的块, 和文件节点在同一个块组, 尽量接在最后一块后面, 连续的块一次写入, 再登记到直接指针和间接块中
+        boolean treeDeferred = false;
+        if (newBlockCount > oldBlockCount) {
+            int group = getInodeGroup(inodeNumber);
+            int goal = lastBlock > 0 ? lastBlock + 1 : streaming ? largestFreeStart(group) : 0;
+            int blocks[] = allocateBlocks(group, newBlockCount - oldBlockCount + indirectNeeded, goal);
+            int dataBlocks[] = Arrays.copyOfRange(blocks, 0, newBlockCount - oldBlockCount);
+            writeBlocks(dataBlocks, data, filled);
+            if (useExtents) {
+                addExtents(oldBlockCount, dataBlocks, extents);
+                treeDeferred = extentTreeBlocks(extents.size()) > 0;
+                if (!treeDeferred) writeExtentTree(inode, extents, treeBlocks);//只改节点里的4项
+            } else {
+                mapBlocks(inode, oldBlockCount, dataBlocks, Arrays.copyOfRange(blocks, dataBlocks.length, blocks.length));
+            }
+        }
+        inode.setSize(fileSize + content.length);
+        return treeDeferred;
+    }
+
+    //块组 group 中最长的空闲区间的开始块号, 没有空闲块时返回0
+    private int largestFreeStart(int group) {
+        synchronized (freeExtents[group]) {
+            return freeExtents[group].getLargestStart();
+        }
+    }
+
+    //追加文本后,更新节点信息
+    void writeAppendModifiedDate(Inode inode) throws IOException {
+        inode.setModifiedTime(toIntExact(System.currentTimeMillis() / 1000));
+        writeInode(inode);
+        writeBitmaps();
+    }
+
+    //逻辑块号到数据块号的映射: 前12块用直接指针, 之后依次是一级, 二级, 三级间接块, 每个间接块存 blockSize/4 个块号
+    //只有节点记录为128字节的磁盘有二级和三级间接指针, 旧磁盘每个文件最多 12 + blockSize/4 块
+
+    //每个文件最多的数据块数
+    private long maxBlocks() {
+        long p = blockSize / 4;
+        return Inode.POINTER_COUNT + p + (superblock.getInodeSize() > Inode.BASIC_RECORD_SIZE ? p * p + p * p * p : 0);
+    }
+
+    //n 个数据块的文件要用的间接块个数(包括各级的索引块), 超出 maxBlocks 时抛出异常
+    private int indirectBlocks(int n) {
+        if (n > maxBlocks()) {
+            throw new IllegalArgumentException(String.format("文件太大: 需要 %d 个数据块, 每个文件最多 %d 块", n, maxBlocks()));
+        }
+        long p = blockSize / 4, rest = n - Inode.POINTER_COUNT, count = 0;
+        if (rest > 0) {//一级: 1个间接块
+            count += 1;
+            rest -= p;
+        }
+        if (rest > 0) {//二级: 1个索引块 + 每 p 块一个间接块
+            count += 1 + (Math.min(rest, p * p) + p - 1) / p;
+            rest -= p * p;
+        }
+        if (rest > 0) {//三级: 1个索引块 + 每 p*p 块一个二级索引块 + 每 p 块一个间接块
+            count += 1 + (rest + p * p - 1) / (p * p) + (rest + p - 1) / p;
+        }
+        return toIntExact(count);
+    }
+
+    //节点的数据块数: 文件由大小算出, 软链接和内嵌的小文件没有数据块
+    private int blockCount(Inode inode) {
+        if (inode.hasFlag(Inode.INLINE_DATA_FLAG)) return 0;
+        switch (inode.getType()) {
+            case Inode.FILE:
+                return (int) (((long) inode.getSize() + blockSize - 1) / blockSize);
+            case Inode.SYM_LINK:
+                return 0;
+            default://目录超过一块后大小记为块数 * 块大小, 以前的目录大小为0, 只用直接指针
+                return inode.getSize() > 0 ? inode.getSize() / blockSize : inode.getDirectBlockCount();
+        }
+    }
+
+    //读间接块中的全部块号, 先查缓存; 返回的数组就是缓存里的, 修改后要写回磁盘
+    private int[] readPointers(int block) throws IOException {
+        int pointers[] = POINTER_CACHE.get(block);
+        if (pointers == null) {
+            ByteBuffer buffer = scratch(blockSize);
+            DEVICE.read(getDataBlockOffset(block), buffer);
+            pointers = new int[blockSize / 4];
+            buffer.clear();
+            buffer.asIntBuffer().get(pointers);
+            POINTER_CACHE.put(block, pointers);
+        }
+        return pointers;
+    }
+
+    //逻辑块号 logical 对应的数据块号, 只读 0 到 3 个间接块(大多在缓存里), 没有返回0
+    public int mapBlock(Inode inode, int logical) throws IOException {
+        int cached[] = BLOCK_MAPS.get(inode.getInode());
+        if (cached != null && logical < cached.length) return cached[logical];
+        if (inode.hasFlag(Inode.EXTENTS_FLAG)) return mapExtent(inode, logical);
+        if (logical < Inode.POINTER_COUNT) return inode.getDirectPointer(logical);
+        long p = blockSize / 4, index = logical - Inode.POINTER_COUNT, span = p;//span: 这一级能映射的块数
+        for (int level = 1; level <= 3; level++) {
+            if (index < span) {
+                int block = inode.getIndirectPointer(level);
+                for (int l = level; l > 0 && block != 0; l--) {
+                    span /= p;
+                    block = readPointers(block)[(int) (index / span % p)];
                 }
+                return block;
+            }
+            index -= span;
+            span *= p;
+        }
+        return 0;
+    }
+
+    //把 blocks 依次登记为从 first 开始的逻辑块, 缺少的间接块从 pool 中取, 改过的间接块最后各写一次
+    private void mapBlocks(Inode inode, int first, int blocks[], int pool[]) throws IOException {
+        Map<Integer, int[]> dirty = new LinkedHashMap<>();
+        PrimitiveIterator.OfInt free = Arrays.stream(pool).iterator();
+        for (int i = 0; i < blocks.length; i++) {
+            setBlock(inode, first + i, blocks[i], free, dirty);
+        }
+        for (Map.Entry<Integer, int[]> entry : dirty.entrySet()) {
+            ByteBuffer buffer = scratch(blockSize);
+            buffer.asIntBuffer().put(entry.getValue());
+            DEVICE.write(getDataBlockOffset(entry.getKey()), buffer);
+        }
+    }
 
+    //把逻辑块 logical 指向数据块 physical, 从顶层往下找, 路上没有的间接块新建(全0)
+    private void setBlock(Inode inode, int logical, int physical, PrimitiveIterator.OfInt free, Map<Integer, int[]> dirty) throws IOException {
+        if (logical < Inode.POINTER_COUNT) {
+            inode.setDirectPointer(logical, physical);
+            return;
+        }
+        long p = blockSize / 4, index = logical - Inode.POINTER_COUNT, span = p;
+        for (int level = 1; level <= 3; level++) {
+            if (index < span) {
+                int block = inode.getIndirectPointer(level);
+                if (block == 0) {
+                    block = newPointerBlock(free, dirty);
+                    inode.setIndirectPointer(level, block);
+                }
+                for (int l = level; l > 0; l--) {
+                    span /= p;
+                    int pointers[] = readPointers(block);
+                    int slot = (int) (index / span % p);
+                    dirty.put(block, pointers);
+                    if (l == 1) {
+                        pointers[slot] = physical;
+                    } else {
+                        if (pointers[slot] == 0) pointers[slot] = newPointerBlock(free, dirty);
+                        block = pointers[slot];
+                    }
+                }
+                return;
             }
+            index -= span;
+            span *= p;
+        }
+        throw new IllegalArgumentException("文件太大: 逻辑块号超出三级间接块的范围 " + logical);
+    }
+
+    //从 free 中取一个块作为新的间接块, 内容全为0
+    private int newPointerBlock(PrimitiveIterator.OfInt free, Map<Integer, int[]> dirty) {
+        int block = free.nextInt();
+        int pointers[] = new int[blockSize / 4];
+        POINTER_CACHE.put(block, pointers);
+        dirty.put(block, pointers);
+        return block;
+    }
 
-            if(freeBlocks!=0) {
-                byte directBlockGroups[][] = BitUtils.splitBytes(direct, BLOCK_SIZE);//将剩下没写的分组
-                int blocks[] = new int[directBlockGroups.length];//用来存新申请到块的块号
-                for (int i = 0; i < directBlockGroups.length; i++) {
-                    byte[] group = directBlockGroups[i];
-                    int block = BitUtils.nextClearBitThenSet(DATA_BITMAP);//块号
-                    blocks[i] = block;
-                    DISK.seek(getDataBlockOffset(block));
-                    DISK.write(group);
+    //按逻辑块顺序访问节点的全部数据块(data)和用到的间接块(index, 在它指向的块之前访问)
+    private void forEachBlock(Inode inode, IntConsumer data, IntConsumer index) throws IOException {
+        int count = blockCount(inode);
+        if (inode.hasFlag(Inode.EXTENTS_FLAG)) {
+            for (int[] extent : readExtents(inode, index)) {
+                for (int i = 0; i < extent[2] && count > 0; i++, count--) {
+                    data.accept(extent[1] + i);
                 }
-                inode.addBlocks(blocks);
             }
+            return;
+        }
+        for (int i = 0; i < Math.min(count, Inode.POINTER_COUNT); i++) {
+            data.accept(inode.getDirectPointer(i));
+        }
+        walkIndirect(inode, count - Inode.POINTER_COUNT, data, index);
+    }
+
+    //访问直接指针之后的 count 个数据块
+    private void walkIndirect(Inode inode, int count, IntConsumer data, IntConsumer index) throws IOException {
+        for (int level = 1; level <= 3 && count > 0; level++) {
+            count -= walk(inode.getIndirectPointer(level), level, count, data, index);
         }
+    }
 
-        if (indirect != null) {
-            ArrayList<Integer> references = new ArrayList<>();//间接指针的值
-            int indirectPointer = inode.getIndirectPointer(); //间接指针
-            if (indirectPointer == 0) {
-                // 如果它到达这里是因为直接块恰好有49152(12*4096)字节。余数应为0
-                indirectPointer = BitUtils.nextClearBitThenSet(DATA_BITMAP);//原来没有间接指针,新申请一个
-                inode.setIndirectPointer(indirectPointer);
+    //访问 level 级间接块 block 下最多 count 个数据块, 返回访问的个数
+    //旧磁盘的间接块只写了用到的部分, 后面可能是以前的数据, 所以一定要用文件大小限制个数
+    private int walk(int block, int level, int count, IntConsumer data, IntConsumer index) throws IOException {
+        if (block == 0) return count;//损坏的节点, 不再往下找
+        int pointers[] = readPointers(block);
+        index.accept(block);
+        int visited = 0;
+        for (int i = 0; i < pointers.length && visited < count; i++) {
+            if (level == 1) {
+                data.accept(pointers[i]);
+                visited++;
+            } else {
+                visited += walk(pointers[i], level - 1, count - visited, data, index);
             }
+        }
+        return visited;
+    }
 
-            int referenceCount = (int) Math.ceil(fileSize / (double) BLOCK_SIZE) - 12;//计算上次间接指针的块数
-            references = readIndirectPointer(indirectPointer, referenceCount);//读取间接指针指向的所有块
+    //区段模式: 节点指针区的4个位置各放一个区段 (逻辑块号, 起始块号, 块数), 区段按逻辑块号排列
+    //超过4个时放进区段块: 第一个整数是项数, 后面每3个整数一项; 这时节点里放的是索引项 (第一个逻辑块号, 区段块号, 覆盖的块数)
+    //一层区段块还不够时再往上加一层索引块, 层数记在节点的区段树深度里
 
-            if (remainder > 0) {//上次最后一块占用的字节数
+    //新建的文件是否用区段, 旧格式的节点没有标志位
+    private boolean useExtents() {
+        return OPTIONS.isExtents() && superblock.getInodeSize() > Inode.BASIC_RECORD_SIZE;
+    }
 
-                int lastBlock = references.get(references.size() - 1);//最后一块
-                if (indirect.length < lastBlockFreeBytes) {
-                    DISK.seek(getDataBlockOffset(lastBlock) + remainder);
-                    DISK.write(indirect);
-                    writeAppendModifiedDate(inode, appendLength);
-                    return true;
-                } else {
-                    byte blockFill[] = Arrays.copyOfRange(indirect, 0, lastBlockFreeBytes);
-                    indirect = Arrays.copyOfRange(indirect, lastBlockFreeBytes, appendLength);
-                    DISK.seek(getDataBlockOffset(lastBlock)+ remainder);
-                    DISK.write(blockFill);
+    //每个区段块能放的项数
+    private int extentsPerBlock() {
+        return (blockSize / 4 - 1) / 3;
+    }
+
+    //放 count 个区段要用的区段块(包括各层索引块)个数
+    private int extentTreeBlocks(long count) {
+        long blocks = 0;
+        while (count > Inode.EXTENT_SLOTS) {
+            count = (count + extentsPerBlock() - 1) / extentsPerBlock();
+            blocks += count;
+        }
+        return toIntExact(blocks);
+    }
+
+    //读出节点的全部区段, 按逻辑块号排列, 经过的区段块交给 index
+    private List<int[]> readExtents(Inode inode, IntConsumer index) throws IOException {
+        List<int[]> extents = new ArrayList<>();
+        for (int i = 0; i < Inode.EXTENT_SLOTS && inode.getExtentField(i, 2) != 0; i++) {
+            int entry[] = {inode.getExtentField(i, 0), inode.getExtentField(i, 1), inode.getExtentField(i, 2)};
+            readExtents(entry, inode.getExtentDepth(), extents, index);
+        }
+        return extents;
+    }
+
+    private void readExtents(int entry[], int depth, List<int[]> extents, IntConsumer index) throws IOException {
+        if (depth == 0) {
+            extents.add(entry);
+            return;
+        }
+        int node[] = readPointers(entry[1]);
+        index.accept(entry[1]);
+        for (int i = 0; i < node[0]; i++) {
+            readExtents(Arrays.copyOfRange(node, 1 + 3 * i, 4 + 3 * i), depth - 1, extents, index);
+        }
+    }
+
+    //区段模式下逻辑块号 logical 对应的数据块号: 节点里最多4项顺序找, 区段块里二分查找, 每层读一个区段块(大多在缓存里)
+    private int mapExtent(Inode inode, int logical) throws IOException {
+        for (int i = 0; i < Inode.EXTENT_SLOTS && inode.getExtentField(i, 2) != 0; i++) {
+            int start = inode.getExtentField(i, 0);
+            if (logical < start || logical - start >= inode.getExtentField(i, 2)) continue;
+            int block = inode.getExtentField(i, 1);
+            for (int depth = inode.getExtentDepth(); depth > 0; depth--) {
+                int node[] = readPointers(block);
+                int lo = 0, hi = node[0] - 1;//找逻辑块号不大于 logical 的最后一项
+                while (lo < hi) {
+                    int mid = (lo + hi + 1) >>> 1;
+                    if (node[1 + 3 * mid] <= logical) lo = mid;
+                    else hi = mid - 1;
                 }
+                start = node[1 + 3 * lo];
+                block = node[2 + 3 * lo];
             }
+            return block + (logical - start);
+        }
+        return 0;
+    }
 
-            byte indirectBlockGroups[][] = BitUtils.splitBytes(indirect, BLOCK_SIZE);
-            for (byte[] group : indirectBlockGroups) {
-                int block = BitUtils.nextClearBitThenSet(DATA_BITMAP);
-                references.add(block);
-                DISK.seek(getDataBlockOffset(block));
-                DISK.write(group);
-            }
+    //把 blocks 登记为从 first 开始的逻辑块, 再按新的区段数重写区段树
+    private void appendExtents(Inode inode, int first, int blocks[], List<int[]> extents, List<Integer> treeBlocks) throws IOException {
+        addExtents(first, blocks, extents);
+        writeExtentTree(inode, extents, treeBlocks);
+    }
 
-            // 将(间接)块引用写入磁盘
-            DISK.seek(getDataBlockOffset(indirectPointer));
-            for (int reference : references) {
-                DISK.write(Ints.toByteArray(reference));
+    //把 blocks 作为从 first 开始的逻辑块加到区段表末尾, 和最后一个区段首尾相接时直接加长它
+    private void addExtents(int first, int blocks[], List<int[]> extents) {
+        for (int i = 0; i < blocks.length; i++) {
+            int last[] = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+            if (last != null && last[0] + last[2] == first + i && last[1] + last[2] == blocks[i]) {
+                last[2]++;
+            } else {
+                extents.add(new int[]{first + i, blocks[i], 1});
             }
         }
-        writeAppendModifiedDate(inode, appendLength);
-        return true;
     }
 
-    //追加文本后,更新节点信息
-    private void writeAppendModifiedDate(Inode inode, int appendLength) throws IOException {
-        inode.setSize(inode.getSize() + appendLength);
-        inode.setModifiedTime(toIntExact(System.currentTimeMillis() / 1000));
-        DISK.seek(getInodeOffset(inode.getInode()));
-        DISK.write(inode.toByteArray());
-        writeBitmaps();
+    //按区段表重写区段树, 原来的区段块 treeBlocks 先重用, 不够再申请(接在最后一个区段后面), 多了就释放
+    void writeExtentTree(Inode inode, List<int[]> extents, List<Integer> treeBlocks) throws IOException {
+        int needed = extentTreeBlocks(extents.size());
+        int pool[] = new int[needed];
+        for (int i = 0; i < treeBlocks.size(); i++) {
+            if (i < needed) pool[i] = treeBlocks.get(i);
+            else freeBlock(treeBlocks.get(i));
+        }
+        if (needed > treeBlocks.size()) {
+            int last[] = extents.get(extents.size() - 1);
+            int more[] = allocateBlocks(getInodeGroup(inode.getInode()), needed - treeBlocks.size(), last[1] + last[2]);
+            System.arraycopy(more, 0, pool, treeBlocks.size(), more.length);
+        }
+        writeExtents(inode, extents, Arrays.stream(pool).iterator());
     }
 
-    //读取间接指针里存的块号,要给出里面存多少个块
-    public ArrayList<Integer> readIndirectPointer(int pointer, int referenceCount) throws IOException {
-        ArrayList<Integer> references = new ArrayList<>();
-        byte blockBytes[] = new byte[4];
-        DISK.seek(getDataBlockOffset(pointer));
-        while (referenceCount > 0) {
-            DISK.read(blockBytes);
-            int block = Ints.fromByteArray(blockBytes);
-            references.add(block);
-            referenceCount--;
+    //把区段表写成区段树: 每 extentsPerBlock 项打包成一个区段块, 直到最上层不超过4项, 最上层放在节点里
+    private void writeExtents(Inode inode, List<int[]> extents, PrimitiveIterator.OfInt free) throws IOException {
+        List<int[]> level = extents;
+        int depth = 0;
+        while (level.size() > Inode.EXTENT_SLOTS) {
+            List<int[]> parents = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += extentsPerBlock()) {
+                List<int[]> entries = level.subList(i, Math.min(i + extentsPerBlock(), level.size()));
+                int block = free.nextInt();
+                int node[] = new int[blockSize / 4];
+                node[0] = entries.size();
+                int covered = 0;//这个区段块覆盖的块数
+                for (int k = 0; k < entries.size(); k++) {
+                    System.arraycopy(entries.get(k), 0, node, 1 + 3 * k, 3);
+                    covered += entries.get(k)[2];
+                }
+                ByteBuffer buffer = scratch(blockSize);
+                buffer.asIntBuffer().put(node);
+                DEVICE.write(getDataBlockOffset(block), buffer);
+                POINTER_CACHE.put(block, node);
+                parents.add(new int[]{entries.get(0)[0], block, covered});
+            }
+            level = parents;
+            depth++;
+        }
+        for (int i = 0; i < Inode.EXTENT_SLOTS; i++) {
+            if (i < level.size()) inode.setExtent(i, level.get(i)[0], level.get(i)[1], level.get(i)[2]);
+            else inode.setExtent(i, 0, 0, 0);
         }
-        return references;
+        inode.setExtentDepth(depth);
     }
 
     //链接:
@@ -713,21 +1724,20 @@ public class FileSystem {
         DirectoryEntry sourceEntry = findEntry(source);//找出原目录项
         Inode sourceInode = inodeTable.get(sourceEntry.getInode());//获取源目录节点
 
+        checkSpace(entryBlocksNeeded(dest), type == DirectoryEntry.SYM_LINK ? 1 : 0);//目录项可能要新的块, 软链接还要一个节点
         if (type == DirectoryEntry.HARD_LINK) {//硬链接
             addDirectoryEntry(sourceInode.getInode(), DirectoryEntry.FILE, dest);//节点号,类型,文件名, 为源节点添加目录项
             sourceInode.setLinkCount(sourceInode.getLinkCount() + 1);//使源节点链接数加1
-            DISK.seek(getInodeOffset(sourceInode.getInode()));//计算偏移量
-            DISK.write(sourceInode.toByteArray());//更新源节点信息到硬盘
+            writeInode(sourceInode);//更新源节点信息到硬盘
         } else if (type == DirectoryEntry.SYM_LINK) {//软链接
-            int inodeNumber = BitUtils.nextClearBitThenSet(INODE_BITMAP);//申请一个节点号
+            int inodeNumber = allocateInode(getInodeGroup(currentDir.getInode()));//申请一个节点号, 放在当前目录所在的块组
 
             addDirectoryEntry(inodeNumber, DirectoryEntry.SYM_LINK, dest);//节点号,类型,文件名, 为新节点添加目录项
 
             Inode inode = new Inode(inodeNumber, Inode.SYM_LINK);
             inode.setSymLinkUrl(source);//
             inodeTable.put(inodeNumber, inode);//将节点写入节点表
-            DISK.seek(getInodeOffset(inodeNumber));
-            DISK.write(inode.toByteArray());
+            writeInode(inode);
             writeBitmaps();
         }
     }
@@ -742,28 +1752,66 @@ public class FileSystem {
         this.currentDir = directory;
     }
 
+    public BlockDevice getDevice() {
+        return DEVICE;
+    }
+
     public InodeTable getInodeTable() {
         return inodeTable;
     }
 
     public Directory getRoot() throws IOException {
-        Directory root = new Directory();
-        Inode rootInode = inodeTable.get(1); //1 是节点号, 不是序号
-        for (int block : rootInode.getDirectBlocks()) {
-            root.add(readDirectoryBlock(block));
-        }
-        return root;
+        return readDirectory(inodeTable.get(ROOT_INODE)); //1 是节点号, 不是序号
     }
 
 
 
-    // 计算给定数据块号的数据偏移量
-    private int getDataBlockOffset(int blockNumber) {
-        return DATA_OFFSET + (blockNumber - 1) * BLOCK_SIZE;
+    public Superblock getSuperblock() {
+        return superblock;
+    }
+
+    // 计算设备上第 block 块(从0开始)的偏移量
+    private long getBlockOffset(int block) {
+        return (long) block * blockSize;
+    }
+
+    // 计算给定数据块号的数据偏移量: 先找到所在块组, 再加上组内序号
+    private long getDataBlockOffset(int blockNumber) {
+        BlockGroup group = groups[getBlockGroup(blockNumber)];
+        return getBlockOffset(group.getFirstDataBlock() + (blockNumber - 1) % superblock.getDataBlocksPerGroup());
     }
 
     // 计算给定inode索引的inode偏移量
-    private int getInodeOffset(int inode) {
-        return INODE_TABLE_OFFSET + (inode - 1) * 80;
+    private long getInodeOffset(int inode) {
+        BlockGroup group = groups[getInodeGroup(inode)];
+        return getBlockOffset(group.getInodeTableBlock()) + (long) ((inode - 1) % superblock.getInodeBitsPerGroup()) * superblock.getInodeSize();
+    }
+
+    // 数据块号所在的块组
+    private int getBlockGroup(int blockNumber) {
+        return (blockNumber - 1) / superblock.getDataBlocksPerGroup();
+    }
+
+    // 节点号所在的块组
+    private int getInodeGroup(int inode) {
+        return (inode - 1) / superblock.getInodeBitsPerGroup();
+    }
+
+    // 块组 g 的第一个和最后一个数据块号
+    private int getFirstBlockNumber(int g) {
+        return g * superblock.getDataBlocksPerGroup() + 1;
+    }
+
+    private int getLastBlockNumber(int g) {
+        return g * superblock.getDataBlocksPerGroup() + groups[g].getDataBlockCount();
+    }
+
+    // 块组 g 的第一个和最后一个节点号
+    private int getFirstInodeNumber(int g) {
+        return g * superblock.getInodeBitsPerGroup() + 1;
+    }
+
+    private int getLastInodeNumber(int g) {
+        return g * superblock.getInodeBitsPerGroup() + groups[g].getInodeCount();
     }
 }
\ No newline at end of file
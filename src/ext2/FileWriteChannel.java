@@ -0,0 +1,77 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//往文件后面写内容的通道(FileSystem.openForWrite / openForAppend 返回), 写入的字节先攒在一块大小的缓冲区里
+//攒够到下一个块边界就分配数据块写下去, 所以不管文件多大, 内存里只有一块的内容
+//写的过程中只改内存中的节点, 关闭时才写回节点和位示图; 新的块尽量接在文件最后一块后面, 文件一直是连续的
+//区段模式下区段表也放在通道里, 每块只改这个表, 区段多到要用区段块时, 区段树也在关闭时才写一次
+public class FileWriteChannel implements WritableByteChannel {
+
+    private final FileSystem FILE_SYSTEM;
+    private final Inode INODE;
+    private final int BLOCK_SIZE;
+    private final byte BUFFER[];
+    private final List<int[]> EXTENTS = new ArrayList<>();//区段模式: 文件的区段表
+    private final List<Integer> TREE_BLOCKS = new ArrayList<>();//区段模式: 原来的区段块
+    private int buffered;//缓冲区中还没写下去的字节数
+    private boolean treeDeferred;//区段树还没写
+    private boolean open = true;
+
+    public FileWriteChannel(FileSystem fileSystem, Inode inode, int blockSize) {
+        FILE_SYSTEM = fileSystem;
+        INODE = inode;
+        BLOCK_SIZE = blockSize;
+        BUFFER = new byte[blockSize];
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        int written = source.remaining();
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), chunkLength() - buffered);
+            source.get(BUFFER, buffered, length);
+            buffered += length;
+            if (buffered == chunkLength()) flush();
+        }
+        return written;
+    }
+
+    //这次要攒的字节数: 写满文件最后一块的剩余空间, 之后每次正好一整块
+    private int chunkLength() {
+        return BLOCK_SIZE - INODE.getSize() % BLOCK_SIZE;
+    }
+
+    //把缓冲区的内容接到文件后面; 空间不够时抛出异常, 缓冲区的内容保留
+    private void flush() throws IOException {
+        byte data[] = buffered == BUFFER.length ? BUFFER : Arrays.copyOf(BUFFER, buffered);
+        treeDeferred |= FILE_SYSTEM.appendData(INODE, data, true, EXTENTS, TREE_BLOCKS);
+        buffered = 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    //写下剩余的内容, 再写回区段树, 节点和位示图; 剩余的内容写不下时也写回已经写下去的部分
+    //每次追加都给区段树留了块, 所以剩余的内容写不下时区段树仍然写得下
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        try {
+            if (buffered > 0) flush();
+        } finally {
+            if (treeDeferred) FILE_SYSTEM.writeExtentTree(INODE, EXTENTS, TREE_BLOCKS);
+            FILE_SYSTEM.writeAppendModifiedDate(INODE);
+        }
+    }
+}
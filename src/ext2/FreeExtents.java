@@ -0,0 +1,146 @@
+package ext2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+//空闲区间树, 记录一个块组中连续的空闲数据块, 用于一次申请多个连续的块
+//载入时由数据块位示图重建, 之后和位示图同步修改, 位示图仍然是写到磁盘上的依据
+public class FreeExtents {
+
+    private final TreeMap<Integer, Integer> EXTENTS = new TreeMap<>();//开始块号 -> 长度
+    private final TreeMap<Integer, TreeSet<Integer>> BY_LENGTH = new TreeMap<>();//长度 -> 这个长度的所有区间的开始块号
+    private int freeCount;//空闲块总数
+
+    //由位示图中 fromIndex 到 toIndex(都包含)的空闲位建立空闲区间
+    public static FreeExtents fromBitmap(Bitmap bitmap, int fromIndex, int toIndex) {
+        FreeExtents extents = new FreeExtents();
+        int start = bitmap.nextClearBit(fromIndex, toIndex);
+        while (start != 0) {
+            int used = bitmap.nextSetBit(start, toIndex);
+            int end = (used == 0) ? toIndex : used - 1;
+            extents.insert(start, end - start + 1);
+            start = (end < toIndex) ? bitmap.nextClearBit(end + 1, toIndex) : 0;
+        }
+        return extents;
+    }
+
+    //申请 n 个块, 返回若干个区间 {开始块号, 长度}, 总长度不超过 n, 空闲块不够时返回的总长度小于 n
+    //有足够长的区间时用其中最短的一个(最佳适应), 否则从最长的区间开始依次取, 让文件分成尽量少的段
+    public List<int[]> allocate(int n) {
+        List<int[]> runs = new ArrayList<>();
+        Map.Entry<Integer, TreeSet<Integer>> fit = BY_LENGTH.ceilingEntry(n);
+        if (fit != null) {
+            int start = fit.getValue().first();
+            take(start, n);
+            runs.add(new int[]{start, n});
+            return runs;
+        }
+        while (n > 0 && !BY_LENGTH.isEmpty()) {
+            Map.Entry<Integer, TreeSet<Integer>> largest = BY_LENGTH.lastEntry();
+            int start = largest.getValue().first();
+            int length = Math.min(n, largest.getKey());
+            take(start, length);
+            runs.add(new int[]{start, length});
+            n -= length;
+        }
+        return runs;
+    }
+
+    //尽量放在 goal 处申请 n 个块(goal 一般是文件最后一块的下一块, 这样追加的块和原来的块连在一起)
+    //goal 空闲时从 goal 开始取, 取到 goal 所在区间的末尾为止; goal 已被占用时取 goal 之后第一个放得下 n 块的区间
+    //都不行或者还差的块再按 allocate(n) 取; goal 为0时就是 allocate(n)
+    public List<int[]> allocate(int n, int goal) {
+        List<int[]> runs = new ArrayList<>();
+        if (goal > 0) {
+            Map.Entry<Integer, Integer> at = EXTENTS.floorEntry(goal);
+            if (at != null && at.getKey() + at.getValue() > goal) {
+                int length = Math.min(n, at.getKey() + at.getValue() - goal);
+                take(at.getKey(), goal, length);
+                runs.add(new int[]{goal, length});
+                n -= length;
+            } else {
+                for (Map.Entry<Integer, Integer> after : EXTENTS.tailMap(goal).entrySet()) {
+                    if (after.getValue() >= n) {
+                        int start = after.getKey();
+                        take(start, n);
+                        runs.add(new int[]{start, n});
+                        return runs;
+                    }
+                }
+            }
+        }
+        if (n > 0) runs.addAll(allocate(n));
+        return runs;
+    }
+
+    //从开始块号为 start 的区间头部取走 length 个块
+    private void take(int start, int length) {
+        take(start, start, length);
+    }
+
+    //从开始块号为 start 的区间中取走从 from 开始的 length 个块, 前后剩下的部分仍是空闲区间
+    private void take(int start, int from, int length) {
+        int extentLength = remove(start);
+        if (from > start) {
+            insert(start, from - start);
+        }
+        if (start + extentLength > from + length) {
+            insert(from + length, start + extentLength - from - length);
+        }
+    }
+
+    //释放一个块, 和前后相邻的空闲区间合并
+    public void free(int block) {
+        int start = block, length = 1;
+        Map.Entry<Integer, Integer> before = EXTENTS.floorEntry(block);
+        if (before != null && before.getKey() + before.getValue() > block) {
+            return;//已经是空闲的
+        }
+        if (before != null && before.getKey() + before.getValue() == block) {
+            start = before.getKey();
+            length += remove(start);
+        }
+        Integer after = EXTENTS.get(block + 1);
+        if (after != null) {
+            length += remove(block + 1);
+        }
+        insert(start, length);
+    }
+
+    private void insert(int start, int length) {
+        EXTENTS.put(start, length);
+        BY_LENGTH.computeIfAbsent(length, k -> new TreeSet<>()).add(start);
+        freeCount += length;
+    }
+
+    private int remove(int start) {
+        int length = EXTENTS.remove(start);
+        TreeSet<Integer> starts = BY_LENGTH.get(length);
+        starts.remove(start);
+        if (starts.isEmpty()) BY_LENGTH.remove(length);
+        freeCount -= length;
+        return length;
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    //最长的空闲区间长度
+    public int getLargest() {
+        return BY_LENGTH.isEmpty() ? 0 : BY_LENGTH.lastKey();
+    }
+
+    //最长的空闲区间的开始块号, 没有空闲块时返回0; 不知道要写多少块的文件从这里开始, 之后的块可以一直接在后面
+    public int getLargestStart() {
+        return BY_LENGTH.isEmpty() ? 0 : BY_LENGTH.lastEntry().getValue().first();
+    }
+
+    //空闲区间个数, 越多说明碎片越多
+    public int size() {
+        return EXTENTS.size();
+    }
+}
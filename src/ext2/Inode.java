@@ -1,228 +1,334 @@
 package ext2;
 
-import com.google.common.primitives.Bytes;
-import com.google.common.primitives.Ints;
-
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 import static java.lang.Math.toIntExact;
 
+//节点, 是节点记录的视图: 字段不存在对象里, 而是直接读写 data 中从 base 开始的 length 个字节
+//新建的节点先用自己的128字节, 放进节点表后改为指向节点表中的记录, 之后的修改直接改在节点表里
+//旧磁盘的节点只有80字节, 没有二级和三级间接指针, 读出来是0, 写入会抛出异常
 public class Inode {
 
     //节点类型常量，不等同于目录项类型常量
     public static final int DIRECTORY = 1;//目录
     public static final int FILE = 2;// 文件
     public static final int SYM_LINK = 3;//软链接
-    // 4 bytes
-    private int type;//节点类型
-    // 4 bytes
-    private int size;//文件大小（目录类型不填这个字段）
-    // 4 bytes
-    private int creationTime;//创建时间
-    // 4 bytes
-    private int modifiedTime;//修改时间
-    // 4 bytes
-    private int lastAccessTime;//最近访问时间
-    // 4 bytes
-    private int deletionTime;//删除时间, 硬盘软删除
-    // 4 bytes
-    private int linkCount;//链接数量
-    // 48 bytes (12 x 4 bytes)
-    private final int[] directPointers = new int[12];//12个直接指针，软链接时，这段空间用来存url，url长度不够就填充0
-    // 4 bytes
-    private int indirectPointer;//间接指针
+
+    //各字段在记录中的偏移量, 和磁盘上的格式一致
+    static final int TYPE_OFFSET = 0;//节点类型, 4 bytes
+    static final int SIZE_OFFSET = 4;//文件大小（目录类型不填这个字段）, 4 bytes
+    static final int CREATION_TIME_OFFSET = 8;//创建时间, 4 bytes
+    static final int MODIFIED_TIME_OFFSET = 12;//修改时间, 4 bytes
+    static final int ACCESS_TIME_OFFSET = 16;//最近访问时间, 4 bytes
+    static final int DELETION_TIME_OFFSET = 20;//删除时间, 硬盘软删除, 4 bytes
+    static final int LINK_COUNT_OFFSET = 24;//链接数量, 4 bytes
+    static final int POINTERS_OFFSET = 28;//12个直接指针, 48 bytes (12 x 4 bytes), 软链接时，这段空间用来存url，url长度不够就填充0
+    static final int INDIRECT_POINTER_OFFSET = 76;//间接指针, 4 bytes
+    public static final int BASIC_RECORD_SIZE = 80;//旧磁盘的节点记录到这里为止
+    static final int DOUBLE_INDIRECT_OFFSET = 80;//二级间接指针, 4 bytes
+    static final int TRIPLE_INDIRECT_OFFSET = 84;//三级间接指针, 4 bytes
+    static final int FLAGS_OFFSET = 88;//标志位, 4 bytes
+    static final int EXTENT_DEPTH_OFFSET = 92;//区段树深度, 0表示区段直接放在节点里, 4 bytes
+    public static final int RECORD_SIZE = 128;//记录总长度, 后面没用到的字节保留为0
+
+    static final int POINTER_COUNT = 12;//直接指针个数
+    static final int EXTENT_SLOTS = 4;//区段模式下指针区能放的区段数, 每个区段12字节
+
+    //标志位
+    public static final int EXTENTS_FLAG = 1;//用区段(逻辑块号, 起始块号, 块数)映射数据块, 不用直接和间接指针
+    public static final int INLINE_DATA_FLAG = 2;//文件内容直接放在节点里(指针区, 以及节点记录128字节之后的部分), 没有数据块
+    public static final int INDEX_FLAG = 4;//目录有哈希索引(DirectoryIndex), 第0块是索引根
+    static final int URL_LENGTH = POINTER_COUNT * 4;//指针区字节数, 软链接的地址和内嵌数据都放在这里
+
+    private ByteBuffer data;//记录所在的内存, 只用绝对位置读写
+    private int base;//记录在 data 中的开始位置
+    private int length;//记录长度, 超出这个长度的字段读出来是0
     // Inode number
-    private int inode;//节点号码字段,并不存到磁盘，只是方便程序使用，存到磁盘的只有八十个字节, 根据磁盘偏移量可以计算出节点号
-    // Sym link url
-    private String url = "";//软链接地址字段，,并不存到磁盘，只是方便程序使用，而是占用directPointers字段的空间，存到磁盘
+    private final int inode;//节点号码字段,并不存到磁盘，只是方便程序使用，不存到节点记录里, 根据磁盘偏移量可以计算出节点号
 
     public Inode(int inode, int type) {//给节点类型是目录或软链接时使用
-        this.inode = inode;
-        this.type = type;
-        creationTime = modifiedTime = lastAccessTime = toIntExact(System.currentTimeMillis() / 1000);
-        linkCount = 1;
+        this(ByteBuffer.allocate(RECORD_SIZE), 0, inode, RECORD_SIZE);
+        setInt(TYPE_OFFSET, type);
+        int now = toIntExact(System.currentTimeMillis() / 1000);
+        setCreationTime(now);
+        setModifiedTime(now);
+        setLastAccessTime(now);
+        setLinkCount(1);
     }
 
     public Inode(int inode, int type, int size) {//给节点类型是文件时使用
         this(inode, type);
-        this.size = size;
+        setSize(size);
+    }
+
+    //data 中从 base 开始, 长 length 字节的记录的视图
+    Inode(ByteBuffer data, int base, int inode, int length) {
+        this.data = data;
+        this.base = base;
+        this.inode = inode;
+        this.length = length;
+    }
+
+    private int getInt(int offset) {
+        return offset < length ? data.getInt(base + offset) : 0;
+    }
+
+    private void setInt(int offset, int value) {
+        if (offset >= length) {
+            throw new IllegalArgumentException(String.format("节点记录只有 %d 字节, 旧格式的磁盘不支持这个字段", length));
+        }
+        data.putInt(base + offset, value);
+    }
+
+    //把记录编码到 target 的 offset 处(绝对位置, 不改变 target 的 position), 不产生任何临时对象
+    public void writeTo(ByteBuffer target, int offset) {
+        writeTo(target, offset, length);
+    }
+
+    //只编码前 length 个字节, 用于80字节的旧节点表
+    public void writeTo(ByteBuffer target, int offset, int length) {
+        for (int i = 0; i < length; i += 4) {
+            target.putInt(offset + i, getInt(i));
+        }
+    }
+
+    //改为指向 target 中 offset 处长 length 字节的记录
+    void attach(ByteBuffer target, int offset, int length) {
+        data = target;
+        base = offset;
+        this.length = length;
+    }
+
+    //记录长度, 旧磁盘为80, 新磁盘默认128, 格式化时可以更大
+    public int getRecordLength() {
+        return length;
     }
 
     //添加块到直接指针位置中
     public void addBlocks(int... blocks) {//可以传多个块号进来, 一个节点可以占用多个块
-        int pointersLeft = 12 - getDirectBlocks().size();//剩余装直接指针的位置数量
+        int pointersLeft = POINTER_COUNT - getDirectBlockCount();//剩余装直接指针的位置数量
         if (blocks.length > pointersLeft) {//传进来的块数比剩余的直接指针位置数量还多
             throw new IllegalArgumentException(String.format("只剩 %d 个直接指针位置, 你要添加%d个块, 指针位置不够!",
                     pointersLeft,
                     blocks.length));
         }
+        int i = 0;
         for (int block : blocks) {
-            for (int i = 0; i < 12; i++) {
-                if (directPointers[i] == 0) {//判断原指针位置是否为空
-                    directPointers[i] = block;//为空,将块号写入
-                    break;
-                }
-            }
+            while (getDirectPointer(i) != 0) i++;//找下一个空的指针位置
+            setInt(POINTERS_OFFSET + 4 * i, block);//为空,将块号写入
         }
     }
 
-    // 从byte数组[]（磁盘）中读取80个字节，并从中创建一个新的Inode实例, 80个字节是节点的数据结构总长度
-    public static Inode fromByteArray(byte array[], int inodeNumber) {
-        // 将80字节数组拆分为子数组
-        final byte TYPE[] = Arrays.copyOfRange(array, 0, 4);
-
+    //source 中 offset 处的节点记录, 不复制也不解析, 字段在读取时才从 source 中取; 类型为0(没有这个节点)返回 null
+    public static Inode readFrom(ByteBuffer source, int offset, int inodeNumber) {
         // 在继续之前，检查类型是否为0(没有inode使用类型0。如果是0，则表示没有inode)
-        int type = Ints.fromByteArray(TYPE);
-        if (type == 0) return null;
-
-        //下面类似, 将那80个字节切割成属性
-        final byte SIZE[] = Arrays.copyOfRange(array, 4, 8);
-        final byte CR_TIME[] = Arrays.copyOfRange(array, 8, 12);
-        final byte M_TIME[] = Arrays.copyOfRange(array, 12, 16);
-        final byte A_TIME[] = Arrays.copyOfRange(array, 16, 20);
-        final byte DEL_TIME[] = Arrays.copyOfRange(array, 20, 24);
-        final byte LINKS[] = Arrays.copyOfRange(array, 24, 28);
-        final byte POINTERS[] = Arrays.copyOfRange(array, 28, 76);
-        final byte IND_POINTER[] = Arrays.copyOfRange(array, 76, 80);
-
-        // 将字节数组转换成相应的属性
-        int size = Ints.fromByteArray(SIZE);
-        int crTime = Ints.fromByteArray(CR_TIME);
-        int modTime = Ints.fromByteArray(M_TIME);
-        int accTime = Ints.fromByteArray(A_TIME);
-        int delTime = Ints.fromByteArray(DEL_TIME);
-        int links = Ints.fromByteArray(LINKS);
-        int indPointer = Ints.fromByteArray(IND_POINTER);
-        String url = "";
-        int pointers[] = null;//指针未定，先判断节点类型后做决定
-
-        if (type == SYM_LINK) {//节点类型是软链接
-            url = new String(POINTERS);//十二个指针位置存的就是链接源地址
-        } else {
-            // 不是软链接，则指针位置中存的就是块号,将块号还原出来
-            IntBuffer intBuffer = ByteBuffer.wrap(POINTERS).asIntBuffer();
-            pointers = new int[intBuffer.remaining()];
-            intBuffer.get(pointers);//将buffer内容保存到 pointers数组
-        }
+        if (source.getInt(offset + TYPE_OFFSET) == 0) return null;
+        return new Inode(source, offset, inodeNumber, Math.min(source.limit() - offset, RECORD_SIZE));
+    }
 
-        // 创建实例并返回它
-        Inode inode = new Inode(inodeNumber, type, size);
-        inode.setCreationTime(crTime);
-        inode.setModifiedTime(modTime);
-        inode.setLastAccessTime(accTime);
-        inode.setDeletionTime(delTime);
-        inode.setLinkCount(links);
-        if (type == SYM_LINK) {
-            inode.setSymLinkUrl(url);
-        } else {
-            inode.addBlocks(pointers);//链接类型节点是没有块指针的
-        }
-        inode.setIndirectPointer(indPointer);
-        return inode;
+    // 从byte数组[]（磁盘）中读取一条节点记录(新格式128字节, 旧格式80字节)，并从中创建一个新的Inode实例
+    public static Inode fromByteArray(byte array[], int inodeNumber) {
+        return readFrom(ByteBuffer.wrap(array.clone()), 0, inodeNumber);
     }
 
     //将inode转换成byte后才能写入硬盘
     public byte[] toByteArray() {
-        final byte TYPE[] = BitUtils.toByteArray(type);
-        final byte SIZE[] = BitUtils.toByteArray(size);
-        final byte CR_TIME[] = BitUtils.toByteArray(creationTime);
-        final byte M_TIME[] = BitUtils.toByteArray(modifiedTime);
-        final byte A_TIME[] = BitUtils.toByteArray(lastAccessTime);
-        final byte DEL_TIME[] = BitUtils.toByteArray(deletionTime);
-        final byte LINKS[] = BitUtils.toByteArray(linkCount);
-
-        byte urlBytes[] = new byte[48];
-        if (type == SYM_LINK) {//写入的时候，如果节点类型是软链接，就把那12个指针位置用来存url，不够48字节则填充0
-            byte[] bytes = url.getBytes();
-            for (int i = 0; i < urlBytes.length; i++) {
-                if (i > bytes.length - 1) {
-                    urlBytes[i] = '\0';
-                } else {
-                    urlBytes[i] = bytes[i];
-                }
-            }
-        }
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        writeTo(bytes, 0);
+        return bytes.array();
+    }
 
-        final byte POINTERS[] = (type == SYM_LINK) ? urlBytes : BitUtils.toByteArray(directPointers);
-        final byte IND_POINTERS[] = BitUtils.toByteArray(indirectPointer);
-        return Bytes.concat(TYPE, SIZE, CR_TIME, M_TIME, A_TIME, DEL_TIME, LINKS, POINTERS, IND_POINTERS);
+    //第 i 个直接指针, 0表示没有
+    public int getDirectPointer(int i) {
+        return getInt(POINTERS_OFFSET + 4 * i);
+    }
+
+    public void setDirectPointer(int i, int block) {
+        setInt(POINTERS_OFFSET + 4 * i, block);
+    }
+
+    //已使用的直接指针个数
+    public int getDirectBlockCount() {
+        int count = 0;
+        for (int i = 0; i < POINTER_COUNT; i++) {
+            if (getDirectPointer(i) != 0) count++;
+        }
+        return count;
     }
 
     //获取节点指向的12直接块号
     public ArrayList<Integer> getDirectBlocks() {
         ArrayList<Integer> blocks = new ArrayList<>();
-        for (int i : directPointers) {
-            if (i == 0) continue;
-            blocks.add(i);
+        for (int i = 0; i < POINTER_COUNT; i++) {
+            int block = getDirectPointer(i);
+            if (block == 0) continue;
+            blocks.add(block);
         }
         return blocks;
     }
 
+    //软链接的地址存在12个指针的位置, 最多48个字节, 不够48字节则填充0
     public void setSymLinkUrl(String url) {
-        this.url = url.trim();
+        byte bytes[] = url.trim().getBytes();
+        for (int i = 0; i < URL_LENGTH; i++) {
+            data.put(base + POINTERS_OFFSET + i, i < bytes.length ? bytes[i] : 0);
+        }
+    }
+
+    //内嵌数据第 i 个字节在记录中的位置: 前48字节在指针区, 其余在128字节之后
+    private int inlineOffset(int i) {
+        return i < URL_LENGTH ? POINTERS_OFFSET + i : RECORD_SIZE + i - URL_LENGTH;
+    }
+
+    //能内嵌的最大字节数
+    public int getInlineCapacity() {
+        return URL_LENGTH + Math.max(0, length - RECORD_SIZE);
+    }
+
+    //把 src 中从 offset 开始的 len 个字节写到内嵌数据的 position 处
+    public void writeInlineData(int position, byte src[], int offset, int len) {
+        if (position + len > getInlineCapacity()) {
+            throw new IllegalArgumentException(String.format("节点最多内嵌 %d 字节", getInlineCapacity()));
+        }
+        for (int i = 0; i < len; i++) {
+            data.put(base + inlineOffset(position + i), src[offset + i]);
+        }
+    }
+
+    //读内嵌数据的前 len 个字节到 dst 的 offset 处
+    public void readInlineData(byte dst[], int offset, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[offset + i] = data.get(base + inlineOffset(i));
+        }
+    }
+
+    //指针区清0
+    public void clearPointers() {
+        for (int i = 0; i < POINTER_COUNT; i++) {
+            setDirectPointer(i, 0);
+        }
     }
 
     public String getSymLinkUrl() {
-        return url;
+        if (getType() != SYM_LINK) return "";
+        byte bytes[] = new byte[URL_LENGTH];
+        for (int i = 0; i < URL_LENGTH; i++) {
+            bytes[i] = data.get(base + POINTERS_OFFSET + i);
+        }
+        return new String(bytes).trim();
     }
 
     public int getSize() {
-        return size;
+        return getInt(SIZE_OFFSET);
     }
 
     public void setSize(int size) {
-        this.size = size;
+        setInt(SIZE_OFFSET, size);
     }
 
     public int getCreationTime() {
-        return creationTime;
+        return getInt(CREATION_TIME_OFFSET);
     }
 
     public void setCreationTime(int time) {
-        creationTime = time;
+        setInt(CREATION_TIME_OFFSET, time);
     }
 
     public int getModifiedTime() {
-        return modifiedTime;
+        return getInt(MODIFIED_TIME_OFFSET);
     }
 
     public void setModifiedTime(int modifiedTime) {
-        this.modifiedTime = modifiedTime;
+        setInt(MODIFIED_TIME_OFFSET, modifiedTime);
     }
 
     public int getLastAccessTime() {
-        return lastAccessTime;
+        return getInt(ACCESS_TIME_OFFSET);
     }
 
     public void setLastAccessTime(int lastAccessTime) {
-        this.lastAccessTime = lastAccessTime;
+        setInt(ACCESS_TIME_OFFSET, lastAccessTime);
     }
 
     public int getDeletionTime() {
-        return deletionTime;
+        return getInt(DELETION_TIME_OFFSET);
     }
 
     public void setDeletionTime(int time) {
-        deletionTime = time;
+        setInt(DELETION_TIME_OFFSET, time);
     }
 
     public int getLinkCount() {
-        return linkCount;
+        return getInt(LINK_COUNT_OFFSET);
     }
 
     public void setLinkCount(int linkCount) {
-        this.linkCount = linkCount;
+        setInt(LINK_COUNT_OFFSET, linkCount);
     }
 
     public int getIndirectPointer() {
-        return indirectPointer;
+        return getInt(INDIRECT_POINTER_OFFSET);
     }
 
     public void setIndirectPointer(int indirectPointer) {
-        this.indirectPointer = indirectPointer;
+        setInt(INDIRECT_POINTER_OFFSET, indirectPointer);
+    }
+
+    public int getDoubleIndirectPointer() {
+        return getInt(DOUBLE_INDIRECT_OFFSET);
+    }
+
+    public void setDoubleIndirectPointer(int pointer) {
+        setInt(DOUBLE_INDIRECT_OFFSET, pointer);
+    }
+
+    public int getTripleIndirectPointer() {
+        return getInt(TRIPLE_INDIRECT_OFFSET);
+    }
+
+    public void setTripleIndirectPointer(int pointer) {
+        setInt(TRIPLE_INDIRECT_OFFSET, pointer);
+    }
+
+    public int getFlags() {
+        return getInt(FLAGS_OFFSET);
+    }
+
+    public void setFlags(int flags) {
+        setInt(FLAGS_OFFSET, flags);
+    }
+
+    public boolean hasFlag(int flag) {
+        return (getFlags() & flag) != 0;
+    }
+
+    public int getExtentDepth() {
+        return getInt(EXTENT_DEPTH_OFFSET);
+    }
+
+    public void setExtentDepth(int depth) {
+        setInt(EXTENT_DEPTH_OFFSET, depth);
+    }
+
+    //区段模式下指针区第 i 个区段的字段, field 为 0 逻辑块号, 1 起始块号, 2 块数; 区段树深度大于0时是指向区段块的索引项
+    public int getExtentField(int i, int field) {
+        return getInt(POINTERS_OFFSET + 12 * i + 4 * field);
+    }
+
+    public void setExtent(int i, int logical, int physical, int length) {
+        setInt(POINTERS_OFFSET + 12 * i, logical);
+        setInt(POINTERS_OFFSET + 12 * i + 4, physical);
+        setInt(POINTERS_OFFSET + 12 * i + 8, length);
+    }
+
+    //第 level 级间接指针, level 为1, 2, 3
+    public int getIndirectPointer(int level) {
+        return getInt(level == 1 ? INDIRECT_POINTER_OFFSET : level == 2 ? DOUBLE_INDIRECT_OFFSET : TRIPLE_INDIRECT_OFFSET);
+    }
+
+    public void setIndirectPointer(int level, int pointer) {
+        setInt(level == 1 ? INDIRECT_POINTER_OFFSET : level == 2 ? DOUBLE_INDIRECT_OFFSET : TRIPLE_INDIRECT_OFFSET, pointer);
     }
 
     public int getInode() {
@@ -230,6 +336,6 @@ public class Inode {
     }
 
     public int getType() {
-        return type;
+        return getInt(TYPE_OFFSET);
     }
 }
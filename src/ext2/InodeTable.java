@@ -1,6 +1,111 @@
 package ext2;
 
-import java.util.HashMap;
-import java.util.List;
+import java.nio.ByteBuffer;
 
-public class InodeTable extends HashMap<Integer, Inode> {}
+//节点表, 所有节点的记录按节点号顺序放在一块堆外内存里, 和磁盘上各块组的节点表排列一样
+//不再为每个节点建 Integer 键, HashMap 项和 Inode 对象; get 返回的 Inode 只是指向这块内存的视图,
+//只要一个字段时用 getType/getSize 等方法直接读, 不创建任何对象
+public class InodeTable {
+
+    private final ByteBuffer RECORDS;//节点记录, 第 n 个节点在 slot(n) * INODE_SIZE 处, 类型为0表示没有这个节点
+    private final int INODE_SIZE;//每条记录占用的字节数, 来自超级块, 旧磁盘为80, 新格式默认为 Inode.RECORD_SIZE
+    private final int INODES_PER_GROUP;//每个块组的节点数
+    private final int INODE_BITS_PER_GROUP;//每个块组的节点号跨度(节点位示图的位数), 节点号按块组编排
+
+    public InodeTable(int groupCount, int inodesPerGroup, int inodeBitsPerGroup, int inodeSize) {
+        INODE_SIZE = inodeSize;
+        INODES_PER_GROUP = inodesPerGroup;
+        INODE_BITS_PER_GROUP = inodeBitsPerGroup;
+        RECORDS = ByteBuffer.allocateDirect(Math.multiplyExact(groupCount * inodesPerGroup, inodeSize));
+    }
+
+    public InodeTable(Superblock superblock) {
+        this(superblock.getGroupCount(), superblock.getInodesPerGroup(), superblock.getInodeBitsPerGroup(), superblock.getInodeSize());
+    }
+
+    //节点号 inode 在表中的偏移量: 块组号 * 每组节点数 + 组内序号
+    private int offset(int inode) {
+        int g = (inode - 1) / INODE_BITS_PER_GROUP;
+        return (g * INODES_PER_GROUP + (inode - 1) % INODE_BITS_PER_GROUP) * INODE_SIZE;
+    }
+
+    //表中是否有这个节点
+    public boolean contains(int inode) {
+        return getType(inode) != 0;
+    }
+
+    //取出节点视图, 没有这个节点返回 null; 通过视图的修改直接写到表中
+    public Inode get(int inode) {
+        return contains(inode) ? new Inode(RECORDS, offset(inode), inode, INODE_SIZE) : null;
+    }
+
+    //把节点记录复制到表中, 之后 inode 对象也改为指向表中的记录
+    public void put(int inodeNumber, Inode inode) {
+        int offset = offset(inodeNumber);
+        int length = Math.min(INODE_SIZE, inode.getRecordLength());
+        inode.writeTo(RECORDS, offset, length);
+        for (int i = length; i < INODE_SIZE; i += 4) {//记录比节点对象长时后面清0, 不留下以前节点的内嵌数据
+            RECORDS.putInt(offset + i, 0);
+        }
+        inode.attach(RECORDS, offset, INODE_SIZE);
+    }
+
+    //块组 g 的全部节点记录, 和磁盘上这个块组的节点表一样长, 载入时把节点表一次读进来
+    public ByteBuffer groupRecords(int g) {
+        ByteBuffer records = RECORDS.duplicate();
+        records.position(g * INODES_PER_GROUP * INODE_SIZE);
+        records.limit((g + 1) * INODES_PER_GROUP * INODE_SIZE);
+        return records.slice();
+    }
+
+    //从 inode 开始的 count 个节点的记录(必须在同一个块组内), 和磁盘上的排列一样, 可以一次写回
+    public ByteBuffer records(int inode, int count) {
+        ByteBuffer records = RECORDS.duplicate();
+        records.position(offset(inode));
+        records.limit(offset(inode) + count * INODE_SIZE);
+        return records.slice();
+    }
+
+    //从表中去掉这个节点(类型清0)
+    public void remove(int inode) {
+        RECORDS.putInt(offset(inode) + Inode.TYPE_OFFSET, 0);
+    }
+
+    //从 fromInode 开始下一个存在并且没有被删除的节点号, 没有返回0, 用于遍历
+    public int next(int fromInode, int lastInode) {
+        for (int inode = fromInode; inode <= lastInode; inode++) {
+            if ((inode - 1) % INODE_BITS_PER_GROUP >= INODES_PER_GROUP) {//跳过块组末尾没有节点的位
+                inode = ((inode - 1) / INODE_BITS_PER_GROUP + 1) * INODE_BITS_PER_GROUP;
+                continue;
+            }
+            if (contains(inode) && getDeletionTime(inode) == 0) return inode;
+        }
+        return 0;
+    }
+
+    //以下方法直接读表中某个节点的一个字段
+    public int getType(int inode) {
+        return RECORDS.getInt(offset(inode) + Inode.TYPE_OFFSET);
+    }
+
+    public int getSize(int inode) {
+        return RECORDS.getInt(offset(inode) + Inode.SIZE_OFFSET);
+    }
+
+    public int getDeletionTime(int inode) {
+        return RECORDS.getInt(offset(inode) + Inode.DELETION_TIME_OFFSET);
+    }
+
+    public int getLinkCount(int inode) {
+        return RECORDS.getInt(offset(inode) + Inode.LINK_COUNT_OFFSET);
+    }
+
+    public int getIndirectPointer(int inode) {
+        return RECORDS.getInt(offset(inode) + Inode.INDIRECT_POINTER_OFFSET);
+    }
+
+    //第 i 个直接指针(从0开始)
+    public int getDirectPointer(int inode, int i) {
+        return RECORDS.getInt(offset(inode) + Inode.POINTERS_OFFSET + 4 * i);
+    }
+}
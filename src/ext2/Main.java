@@ -2,30 +2,94 @@ package ext2;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class Main {
 
     public static void main(String[] args) {
         try {
-            Disk disk; //磁盘
+            String mode = "disk";//磁盘打开方式, 启动参数 -mmap / -channel / -memory, 默认使用 Disk(RandomAccessFile)
+            int cacheMB = 0;//块缓存大小, 启动参数 -cache <MB>, 0 表示不使用缓存
+            boolean format = false;//启动参数 -format, 强制重新格式化已有的 disk.bin
+            long sizeMB = Disk.SIZE_MB;//格式化参数 -size <MB>, 新磁盘的大小
+            int blockSize = FileSystem.DEFAULT_BLOCK_SIZE;//格式化参数 -block <字节>, 块大小
+            int inodeCount = 0;//格式化参数 -inodes <个数>, 节点数, 0 表示按磁盘大小计算
+            int inodeSize = Superblock.DEFAULT_INODE_SIZE;//格式化参数 -inodesize <字节>, 节点记录大小
+            MountOptions options = new MountOptions();//挂载选项
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-mmap")) mode = "mmap";
+                if (args[i].equals("-channel")) mode = "channel";
+                if (args[i].equals("-memory")) mode = "memory";
+                if (args[i].equals("-format")) format = true;
+                if (args[i].equals("-extents")) options.setExtents(true);
+                if (args[i].equals("-dirindex")) options.setDirIndex(true);
+                if (args[i].equals("-strictatime")) options.setAtimeMode(MountOptions.STRICTATIME);
+                if (args[i].equals("-relatime")) options.setAtimeMode(MountOptions.RELATIME);
+                if (args[i].equals("-noatime")) options.setAtimeMode(MountOptions.NOATIME);
+                if (args[i].equals("-cache") && i + 1 < args.length) cacheMB = Integer.parseInt(args[++i]);
+                if (args[i].equals("-size") && i + 1 < args.length) sizeMB = Long.parseLong(args[++i]);
+                if (args[i].equals("-block") && i + 1 < args.length) blockSize = Integer.parseInt(args[++i]);
+                if (args[i].equals("-inodes") && i + 1 < args.length) inodeCount = Integer.parseInt(args[++i]);
+                if (args[i].equals("-inodesize") && i + 1 < args.length) inodeSize = Integer.parseInt(args[++i]);
+                if (args[i].equals("-commit") && i + 1 < args.length) options.setCommitInterval(Integer.parseInt(args[++i]));
+            }
+
+            if (mode.equals("memory") && sizeMB * 1024 * 1024 > Integer.MAX_VALUE) {//一个 ByteBuffer 最多 2GB
+                System.out.printf("内存磁盘太大: %dMB, 使用 -memory 时 -size 最大为 %dMB%n", sizeMB, Integer.MAX_VALUE / 1024 / 1024);
+                return;
+            }
+
+            BlockDevice device; //块设备
             FileSystem fileSystem;//文件系统
             File binaryFile = new File("disk.bin");//打开disk.bin,下面当作虚拟磁盘
-            if (binaryFile.exists() && !binaryFile.isDirectory()) {
-                disk = new Disk(binaryFile);//新建一个虚拟磁盘
-                fileSystem = new FileSystem(disk);//new一个文件系统对象
+            if (!format && !mode.equals("memory") && binaryFile.exists() && !binaryFile.isDirectory()) {
+                device = openDevice(binaryFile, mode, binaryFile.length(), cacheMB);//已有的磁盘, 大小就是镜像文件大小
+                fileSystem = new FileSystem(device, options);//new一个文件系统对象
                 fileSystem.load();//载入文件系统
             } else {
-                binaryFile.createNewFile();//disk.bin不存在, 新建
-                disk = new Disk(binaryFile);
-                fileSystem = new FileSystem(disk);
+                if (!mode.equals("memory")) {
+                    binaryFile.delete();
+                    binaryFile.createNewFile();//disk.bin不存在(或要重新格式化), 新建
+                }
+                device = openDevice(binaryFile, mode, sizeMB * 1024 * 1024, cacheMB);
+                fileSystem = new FileSystem(device, options);
                 System.out.println("格式化磁盘中...");
-                fileSystem.format();
+                fileSystem.format(blockSize, inodeCount, inodeSize);
                 System.out.println("格式化完成");
+                System.out.println(fileSystem.getSuperblock());
             }
             Shell shell = new Shell(fileSystem);//建立一个shell界面
             shell.start();
+            fileSystem.unmount();//写回缓存中的修改并关闭磁盘
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
     }
+
+    //打开块设备, 需要时在外面包一层块缓存
+    private static BlockDevice openDevice(File file, String mode, long sizeBytes, int cacheMB) throws IOException {
+        BlockDevice device = openDevice(file, mode, sizeBytes);
+        return cacheMB > 0 ? new BlockCache(device, cacheMB) : device;
+    }
+
+    //按启动参数打开块设备, 内存映射失败时退回到普通的 seek + read/write 方式
+    private static BlockDevice openDevice(File file, String mode, long sizeBytes) throws IOException {
+        switch (mode) {
+            case "memory"://纯内存磁盘, 退出后内容丢失
+                return ByteBufferBlockDevice.allocateDirect(Math.toIntExact(sizeBytes), FileSystem.DEFAULT_BLOCK_SIZE);
+            case "channel"://FileChannel 带位置参数读写
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                return new FileChannelBlockDevice(channel, sizeBytes, FileSystem.DEFAULT_BLOCK_SIZE);
+            case "mmap":
+                try {
+                    return new DiskBlockDevice(new MappedDisk(file, sizeBytes), FileSystem.DEFAULT_BLOCK_SIZE);
+                } catch (IOException | OutOfMemoryError e) {//映射失败(如地址空间不足), 使用普通方式; 失败时 MappedDisk 已经关闭了文件
+                    System.out.println("内存映射失败, 使用普通读写方式: " + e.getMessage());
+                    return new DiskBlockDevice(new Disk(file, sizeBytes), FileSystem.DEFAULT_BLOCK_SIZE);
+                }
+            default:
+                return new DiskBlockDevice(new Disk(file, sizeBytes), FileSystem.DEFAULT_BLOCK_SIZE);
+        }
+    }
 }
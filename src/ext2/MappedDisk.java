@@ -0,0 +1,137 @@
+package ext2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//内存映射磁盘, 用 FileChannel.map 把整个 disk.bin 映射到内存,
+//seek/read/write 变成对映射缓冲区的读写, 不再每次都产生系统调用
+public class MappedDisk extends Disk {
+
+    private static final int SEGMENT_SHIFT = 30;//单个映射段大小 1GB, 一个 MappedByteBuffer 最多只能映射 2GB
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    private final MappedByteBuffer SEGMENTS[];//映射段, 按顺序覆盖整个磁盘
+    private long position;//文件指针, 代替 RandomAccessFile 自身的指针
+
+    public MappedDisk(File file) throws IOException {
+        this(file, (long) SIZE_MB * 1024 * 1024);
+    }
+
+    public MappedDisk(File file, long sizeBytes) throws IOException {
+        super(file, sizeBytes);
+        long size = getSizeBytes();
+        int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        SEGMENTS = new MappedByteBuffer[count];
+        try {
+            if (super.length() < size) {
+                super.setLength(size);//映射前先把文件撑到磁盘大小(稀疏文件, 不占实际空间)
+            }
+            FileChannel channel = getChannel();
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                SEGMENTS[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        } catch (IOException | RuntimeException | Error e) {//映射失败时关闭已经打开的文件, 调用者可以换一种方式重新打开
+            super.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0 || pos > getSizeBytes()) {
+            throw new IOException("偏移量超出磁盘范围: " + pos);
+        }
+        position = pos;
+    }
+
+    @Override
+    public long getFilePointer() {
+        return position;
+    }
+
+    @Override
+    public long length() {
+        return getSizeBytes();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= getSizeBytes()) return -1;
+        int b = SEGMENTS[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & (SEGMENT_SIZE - 1))) & 0xFF;
+        position++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long remaining = getSizeBytes() - position;
+        if (remaining <= 0) return len == 0 ? 0 : -1;
+        len = (int) Math.min(len, remaining);
+        int done = 0;
+        while (done < len) {//可能跨越映射段, 分段读取
+            MappedByteBuffer segment = SEGMENTS[(int) (position >>> SEGMENT_SHIFT)];
+            int segmentOffset = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(len - done, segment.capacity() - segmentOffset);
+            ByteBuffer view = segment.duplicate();//复制一个视图, 不改动映射段自身的 position
+            view.position(segmentOffset);
+            view.get(b, off + done, n);
+            done += n;
+            position += n;
+        }
+        return len;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position >= getSizeBytes()) {
+            throw new IOException("写入超出磁盘范围");
+        }
+        SEGMENTS[(int) (position >>> SEGMENT_SHIFT)].put((int) (position & (SEGMENT_SIZE - 1)), (byte) b);
+        position++;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (position + len > getSizeBytes()) {
+            throw new IOException("写入超出磁盘范围");
+        }
+        int done = 0;
+        while (done < len) {
+            MappedByteBuffer segment = SEGMENTS[(int) (position >>> SEGMENT_SHIFT)];
+            int segmentOffset = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(len - done, segment.capacity() - segmentOffset);
+            ByteBuffer view = segment.duplicate();
+            view.position(segmentOffset);
+            view.put(b, off + done, n);
+            done += n;
+            position += n;
+        }
+    }
+
+    //把映射区中修改过的页刷回文件
+    public void force() {
+        for (MappedByteBuffer segment : SEGMENTS) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        super.close();
+    }
+}
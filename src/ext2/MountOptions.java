@@ -0,0 +1,73 @@
+package ext2;
+
+//挂载选项, 决定文件系统把元数据写回磁盘的时机
+public class MountOptions {
+
+    //访问时间的更新方式, 和 Linux 的同名挂载选项一样
+    public static final int STRICTATIME = 0;//每次读文件都更新访问时间
+    public static final int RELATIME = 1;//访问时间不晚于修改时间, 或者已经过了一天时才更新
+    public static final int NOATIME = 2;//读文件从不更新访问时间
+
+    //位示图和块组描述符的提交间隔, 单位秒. 0 表示每次修改后立即写回;
+    //大于0时修改只记在内存里, 距离上次写回超过这个时间的下一次修改, 或者 sync/卸载时才写回
+    private int commitInterval;
+
+    //新建的文件是否用区段(ext4 的 extent)映射数据块, 只对节点记录为128字节的磁盘有效; 已有的文件保持原来的方式
+    private boolean extents;
+
+    //只有一块的目录满了时是否改为有哈希索引的目录, 只对节点记录为128字节的磁盘有效; 已有索引的目录总是按索引查找
+    private boolean dirIndex;
+
+    //访问时间更新方式, 默认 RELATIME; 更新后的节点只记为脏节点, 和位示图一起按提交间隔批量写回
+    private int atimeMode = RELATIME;
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    public MountOptions setCommitInterval(int commitInterval) {
+        if (commitInterval < 0) {
+            throw new IllegalArgumentException("提交间隔不能小于0: " + commitInterval);
+        }
+        this.commitInterval = commitInterval;
+        return this;
+    }
+
+    public boolean isExtents() {
+        return extents;
+    }
+
+    public MountOptions setExtents(boolean extents) {
+        this.extents = extents;
+        return this;
+    }
+
+    public boolean isDirIndex() {
+        return dirIndex;
+    }
+
+    public MountOptions setDirIndex(boolean dirIndex) {
+        this.dirIndex = dirIndex;
+        return this;
+    }
+
+    public int getAtimeMode() {
+        return atimeMode;
+    }
+
+    public MountOptions setAtimeMode(int atimeMode) {
+        if (atimeMode < STRICTATIME || atimeMode > NOATIME) {
+            throw new IllegalArgumentException("访问时间更新方式不正确: " + atimeMode);
+        }
+        this.atimeMode = atimeMode;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return (commitInterval == 0 ? "位示图立即写回" : String.format("位示图每 %d 秒写回", commitInterval))
+                + (extents ? ", 新文件使用区段" : "")
+                + (dirIndex ? ", 大目录使用哈希索引" : "")
+                + ", " + (atimeMode == STRICTATIME ? "strictatime" : atimeMode == RELATIME ? "relatime" : "noatime");
+    }
+}
@@ -0,0 +1,17 @@
+package ext2;
+
+import java.io.IOException;
+
+//磁盘空间不足(没有足够的空闲数据块或节点), 在申请之前检查空闲数时抛出, 这时还没有改动任何数据
+public class NoSpaceException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NoSpaceException(String message) {
+        super(message);
+    }
+
+    public NoSpaceException(int needed, int free, String what) {
+        this(String.format("磁盘空间不足: 需要 %d 个%s, 只剩 %d 个", needed, what, free));
+    }
+}
@@ -3,6 +3,7 @@ package ext2;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Scanner;
 
@@ -32,12 +33,12 @@ public class Shell {
                     if (opts.length == 2) {
                         // ls -l
                         if (opts[1].equals("-l"))
-                            lsExtended(fileSystem.getCurrentDirectory());
+                            lsExtended(fileSystem.getCurrentDirectory().getInode());
                         else
                             System.out.printf("不支持的命令参数 '%s'%n", opts[1]);
                     } else if (opts.length == 1) {
                         // ls
-                        ls(fileSystem.getCurrentDirectory());
+                        ls(fileSystem.getCurrentDirectory().getInode());
                     } else {
                         System.out.println("ls命令使用错误. 只支持 'ls' 或 'ls -l'");
                     }
@@ -65,28 +66,21 @@ public class Shell {
                             System.out.println("文件名过长 (最大255个字符)");
                             break;
                         }
-                        String content = "";
-                        String line;
-                        while (!(line = scanner.nextLine()).equalsIgnoreCase("!eof")) {//按行读取屏幕输入，直到 ！EOF结束
-                            content += line + "\n";
-                        }
+                        FileWriteChannel file = null;
                         try {
-                            fileSystem.writeFile(fileName, content);//写入到文件
+                            file = fileSystem.openForWrite(fileName);//新建空文件
                         } catch (IllegalArgumentException iae) {
                             System.out.println(iae.getMessage());
+                        } catch (NoSpaceException nse) {
+                            System.out.println(nse.getMessage());//空间不够, 什么都没有写
                         }
+                        writeLines(scanner, file);//边读边写到文件
                     } else if (input.contains(" >> ")) {//判断是否有追加写入符号
                         String opts[] = input.split(">>");//分割命令和参数
                         String fileName = opts[1].trim();//清除首尾空格，得文件名
-                        String content = "";
-                        String line;
-                        while (!(line = scanner.nextLine()).equalsIgnoreCase("!eof")) {//按行读取屏幕输入，直到 ！EOF结束
-                            content += line + "\n";
-                        }
-                        if (!fileSystem.append(fileName, content)) {
-                            System.out.println("文件不存在");
-                            break;
-                        }
+                        FileWriteChannel file = fileSystem.openForAppend(fileName);
+                        writeLines(scanner, file);
+                        if (file == null) System.out.println("文件不存在");
                     } else {//否则就是读取文件
                         String opts[] = input.split(" ", 2);//分割命令和参数
                         if (opts.length == 2) {
@@ -114,6 +108,8 @@ public class Shell {
                             fileSystem.writeDirectory(dirName);
                         } catch (IllegalArgumentException iae) {
                             System.out.println(iae.getMessage());
+                        } catch (NoSpaceException nse) {
+                            System.out.println(nse.getMessage());
                         }
                         cd(dirName);
 
@@ -163,22 +159,26 @@ public class Shell {
 
                 case "!ln": {
                     String params[] = input.split(" ", 3);//空格分割命令和参数，只保留命令和两个参数
-                    if (params[1].equals("-s")) {//软链接
-                        // ln -s (软链接)
-                        String paths[] = input.split(" -s ")[1].split(" ", 2);//分割得到源地址 和 目的地址
-                        if (paths.length == 2) {
-                            String source = paths[0];
-                            String dest = paths[1];
-                            fileSystem.writeLink(source, dest, DirectoryEntry.SYM_LINK);
+                    try {
+                        if (params[1].equals("-s")) {//软链接
+                            // ln -s (软链接)
+                            String paths[] = input.split(" -s ")[1].split(" ", 2);//分割得到源地址 和 目的地址
+                            if (paths.length == 2) {
+                                String source = paths[0];
+                                String dest = paths[1];
+                                fileSystem.writeLink(source, dest, DirectoryEntry.SYM_LINK);
+                            } else {
+                                System.out.println("'ln'命令使用错误. 请使用 'ln [-s] <源> <目的>' 或 'ln <源> <目的>'");
+                            }
                         } else {
-                            System.out.println("'ln'命令使用错误. 请使用 'ln [-s] <源> <目的>' 或 'ln <源> <目的>'");
+                            // ln (硬链接)
+                            String paths[] = input.split(" ", 2)[1].split(" ", 2);//分割得到源地址 和 目的地址
+                            String source = paths[0];
+                            String des = paths[1];
+                            fileSystem.writeLink(source, des, DirectoryEntry.HARD_LINK);
                         }
-                    } else {
-                        // ln (硬链接)
-                        String paths[] = input.split(" ", 2)[1].split(" ", 2);//分割得到源地址 和 目的地址
-                        String source = paths[0];
-                        String des = paths[1];
-                        fileSystem.writeLink(source, des, DirectoryEntry.HARD_LINK);
+                    } catch (NoSpaceException nse) {
+                        System.out.println(nse.getMessage());
                     }
                     break;
                 }
@@ -188,6 +188,30 @@ public class Shell {
                     fileSystem.show();
                     break;
                 }
+                case "sync": {
+                    fileSystem.sync();
+                    break;
+                }
+                case "compact": {
+                    System.out.println(fileSystem.compactDirectory());
+                    break;
+                }
+                case "df": {
+                    System.out.println(fileSystem.getUsage());
+                    break;
+                }
+                case "stats": {
+                    System.out.println(fileSystem.getBitmapStats());
+                    break;
+                }
+                case "cache": {
+                    if (fileSystem.getDevice() instanceof BlockCache) {
+                        System.out.println(fileSystem.getDevice());
+                    } else {
+                        System.out.println("未启用块缓存, 请使用 -cache <MB> 启动参数");
+                    }
+                    break;
+                }
                 case "help": {
                     help();
                     break;
@@ -199,46 +223,79 @@ public class Shell {
         }
     }
 
-    public void ls(Directory directory) {//需要一个目录类型的参数
-        for (int block = 0; block < directory.size(); block++) {//遍历目录中的各个块
-            DirectoryBlock dirBlock = directory.get(block);
-            for (int entry = 0; entry < dirBlock.size(); entry++) {//遍历块中的各个目录项
-                DirectoryEntry dirEntry = dirBlock.get(entry);
-                if (dirEntry.getFilename().equals(".") || dirEntry.getFilename().equals("..")) continue;//不显示 . 和 .. 目录
+    //列目录时每次从磁盘读出的目录项个数, 一页一页地边读边打印, 大目录也不用整个载入
+    private static final int LS_PAGE = 256;
 
-                System.out.printf((block == directory.size() - 1) && (entry == dirBlock.size() - 1)//是否是最后一个目录项, 非最后一个后跟空格
-                        ? (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? ANSI_BLUE + "%s%n" + ANSI_RESET : "%s%n" //是否是目录， 目录颜色输出蓝色
-                        : (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? ANSI_BLUE + "%s  " + ANSI_RESET : "%s  ", dirEntry.getFilename());
-            }
+    public void ls(int dirInode) throws IOException {//目录的节点号
+        String last[] = {null};//上一个目录项, 读到下一个时才知道它是不是最后一个
+        boolean lastIsDir[] = {false};
+        long cookie = 0;
+        do {
+            cookie = fileSystem.readdir(dirInode, cookie, LS_PAGE, dirEntry -> {//遍历目录中的各个目录项
+                String name = dirEntry.getFilename();
+                if (name.equals(".") || name.equals("..")) return;//不显示 . 和 .. 目录
+                if (last[0] != null) {//非最后一个后跟空格, 目录颜色输出蓝色
+                    System.out.printf(lastIsDir[0] ? ANSI_BLUE + "%s  " + ANSI_RESET : "%s  ", last[0]);
+                }
+                last[0] = name;
+                lastIsDir[0] = dirEntry.getType() == DirectoryEntry.DIRECTORY;
+            });
+        } while (cookie != -1);
+        if (last[0] != null) {//最后一个目录项后换行
+            System.out.printf(lastIsDir[0] ? ANSI_BLUE + "%s%n" + ANSI_RESET : "%s%n", last[0]);
         }
     }
 
-    public void lsExtended(Directory directory) {
+    public void lsExtended(int dirInode) throws IOException {
         InodeTable inodeTable = fileSystem.getInodeTable();
-        Inode inode;
-        String creationDate, accessDate, modifiedDate, fileName, type, size;
-        if (directory.get(0).hasEntries())// 如果目录中有目录项（除了 . 和 ..），输出表头
-            System.out.format("%-10s%-25s%-25s%-25s%-25s%-25s%-25s%n", "Inode","Created", "Last access", "Modified", "Type", "Size(bytes)", "Name");
-
-        for (DirectoryBlock block : directory) {//遍历目录块
-            for (DirectoryEntry dirEntry : block) {// 变量块中的目录项
-                if (dirEntry.getFilename().equals(".") || dirEntry.getFilename().equals("..")) continue;//不显示 . 和 .. 目录
+        boolean header[] = {false};
+        long cookie = 0;
+        do {
+            cookie = fileSystem.readdir(dirInode, cookie, LS_PAGE, dirEntry -> {// 遍历目录中的目录项
+                String fileName = dirEntry.getFilename();
+                if (fileName.equals(".") || fileName.equals("..")) return;//不显示 . 和 .. 目录
+                if (!header[0]) {// 如果目录中有目录项（除了 . 和 ..），在第一个目录项前输出表头
+                    System.out.format("%-10s%-25s%-25s%-25s%-25s%-25s%-25s%n", "Inode","Created", "Last access", "Modified", "Type", "Size(bytes)", "Name");
+                    header[0] = true;
+                }
 
-                inode = inodeTable.get(dirEntry.getInode());//根据节点号码从节点表中取出节点实体， 不用再取读磁盘
-                creationDate = Utils.epochTimeToDate(inode.getCreationTime());//创建时间
-                accessDate = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "" : Utils.epochTimeToDate(inode.getLastAccessTime());//为文件类型时显示访问时间
-                modifiedDate = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "" : Utils.epochTimeToDate(inode.getModifiedTime());//为文件类型时显示修改时间
-                size = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "" : Integer.toString(inode.getSize());//为文件类型时显示五文件大小
-                type = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "<DIR>" : "";// 为目录类型时，输出标识
-                fileName = dirEntry.getFilename();
+                boolean directory = dirEntry.getType() == DirectoryEntry.DIRECTORY;
+                Inode inode = inodeTable.get(dirEntry.getInode());//根据节点号码从节点表中取出节点实体， 不用再取读磁盘
+                String creationDate = Utils.epochTimeToDate(inode.getCreationTime());//创建时间
+                String accessDate = directory ? "" : Utils.epochTimeToDate(inode.getLastAccessTime());//为文件类型时显示访问时间
+                String modifiedDate = directory ? "" : Utils.epochTimeToDate(inode.getModifiedTime());//为文件类型时显示修改时间
+                String size = directory ? "" : Integer.toString(inode.getSize());//为文件类型时显示五文件大小
+                String type = directory ? "<DIR>" : "";// 为目录类型时，输出标识
 
                 System.out.format(
-                        (dirEntry.getType() == DirectoryEntry.DIRECTORY)// 是否为目录类型，目录显示蓝色
+                        directory// 是否为目录类型，目录显示蓝色
                                 ? "%-10d%-25s%-25s%-25s%-25s%-25s" + ANSI_BLUE + "%-25s" + ANSI_RESET + "%n"
                                 : "%-10d%-25s%-25s%-25s%-25s%-25s%-25s%n",
                         inode.getInode(),creationDate, accessDate, modifiedDate, type, size, fileName);
+            });
+        } while (cookie != -1);
+    }
+
+    //按行读取屏幕输入，直到 ！EOF结束, 每行马上写到 file; file 为 null 或写出错后只读不写, 保证输入都读完
+    //空间不够或文件太大时, 已经写下去的内容保留(和 Linux 一样)
+    private void writeLines(Scanner scanner, FileWriteChannel file) throws IOException {
+        String error = null;
+        String line;
+        while (!(line = scanner.nextLine()).equalsIgnoreCase("!eof")) {
+            if (file == null || error != null) continue;
+            try {
+                file.write(ByteBuffer.wrap((line + "\n").getBytes()));
+            } catch (IllegalArgumentException | NoSpaceException e) {
+                error = e.getMessage();
             }
         }
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IllegalArgumentException | NoSpaceException e) {
+            if (error == null) error = e.getMessage();
+        }
+        if (error != null) System.out.println(error);
     }
 
     public void cat(String fileName) {
@@ -258,25 +315,15 @@ public class Shell {
     public void cd(String path) throws IOException {
 
         String rollbackPath = getCurrentPath(); // 用于恢复路径，以防此方法在构建路径时引发异常
-        Directory initialDir = (path.startsWith("/")) ? fileSystem.getRoot() : fileSystem.getCurrentDirectory();//获取初始目录， / 开头表示从根开始， 否则表示从当前路径下开始
+        int dirInode = (path.startsWith("/")) ? FileSystem.ROOT_INODE : fileSystem.getCurrentDirectory().getInode();//初始目录的节点号， / 开头表示从根开始， 否则表示从当前路径下开始
         currentPath = (path.startsWith("/")) ? "/" : currentPath;//获取当前路径， / 开头表示从根开始， 否则表示从当前路径下开始
 
         ArrayList<String> directories = Utils.splitPath(path);// 根据 / 分割路径存到数组
         for (String name : directories) {//遍历所有路径， 每遍历一次，进入一层路径
-            DirectoryEntry entry = initialDir.findEntry(name);// 从初始路径下找目录项
+            DirectoryEntry entry = fileSystem.lookup(dirInode, name);// 从初始路径下找目录项, 先查目录项缓存
             if (entry != null) {// 能找到
                 if (entry.getType() == DirectoryEntry.DIRECTORY) {// 且目录项类型是目录
-                    Directory directory = new Directory();
-                    ArrayList<Integer> dirBlocks;
-                    int inodeNumber = entry.getInode();// 获取目录的节点号
-                    Inode inode = fileSystem.getInodeTable().get(inodeNumber);// 根据节点号从节点表拿出节点实体
-                    dirBlocks = inode.getDirectBlocks();// 获取这个节点的所有块
-
-                    // 遍历每个块并把他们添加到目录
-                    for (int block : dirBlocks)
-                        directory.add(fileSystem.readDirectoryBlock(block));
-
-                    initialDir = directory;//初始目录等于进来的这个目录
+                    dirInode = entry.getInode();//初始目录等于进来的这个目录
                     currentPath = FilenameUtils.concat(getCurrentPath(), name.concat("/"));// 当前路径 = 当前路径/name/
                 } else {
                     // 它是一个文件，所以没有目录条目
@@ -290,7 +337,10 @@ public class Shell {
                 return;
             }
         }
-        fileSystem.setCurrentDirectory(initialDir);//遍历完所有路径后，初始目录就是当前进来的目录了
+        if (dirInode != fileSystem.getCurrentDirectory().getInode()) {//遍历完所有路径后，读入最后进来的目录作为当前目录
+            Inode inode = fileSystem.getInodeTable().get(dirInode);// 根据节点号从节点表拿出节点实体
+            fileSystem.setCurrentDirectory(fileSystem.readDirectory(inode));// 读出这个目录的全部块(和哈希索引)
+        }
     }
 
     public String getCurrentPath() {
@@ -306,6 +356,11 @@ public class Shell {
                             "rmdir  ------      删除目录命令, 暂时不能递归删除\n" +
                             "rm     ------      删除文件命令\n" +
                             "show   ------      显示位示图和索引表\n" +
+                            "df     ------      显示数据块和节点的使用情况\n" +
+                            "compact ------     整理当前目录, 紧凑排列目录项并释放空出来的目录块\n" +
+                            "sync   ------      将延迟的位示图和缓存中的修改写回磁盘\n" +
+                            "cache  ------      显示块缓存命中统计\n" +
+                            "stats  ------      显示位示图写回统计\n" +
                             "help   ------      显示帮助信息\n" +
                 "\u001B[0m"
         );
@@ -0,0 +1,280 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+
+//超级块, 存在磁盘的第0块, 记录卷的几何参数(块大小, 块数, 节点数)和块组的划分
+//载入时从这里读取布局, 不再依赖编译进代码的常量
+//磁盘布局: 超级块 | 块组描述符表 | 块组0 | 块组1 | ... 每个块组: 数据块位示图 | 节点位示图 | 节点表 | 数据块
+//数据块号和节点号在所有块组中统一编号: 块组g 的数据块号从 g*每组位示图位数+1 开始, 节点号同理
+public class Superblock {
+
+    public static final int MAGIC = 0x45585432;//"EXT2", 用于识别磁盘上是否有超级块
+    public static final int VERSION = 2;//版本1: 没有块组(整个磁盘一个块组, 没有块组描述符表)
+    public static final int SIZE = 56;//超级块在磁盘中占用的字节数(所在块的其余部分不用)
+
+    public static final int DEFAULT_INODE_SIZE = Inode.RECORD_SIZE;//每个节点128字节, 比旧格式多了二级和三级间接指针
+    public static final int LEGACY_INODE_SIZE = Inode.BASIC_RECORD_SIZE;//旧磁盘每个节点80字节
+    public static final int DEFAULT_BYTES_PER_INODE = 16 * 1024;//默认每16KB磁盘空间分配一个节点
+
+    private int version;
+    private int blockSize;//块大小, 单位字节
+    private int blockCount;//卷的总块数(包括超级块和元数据块)
+    private int inodeSize;//每个节点占用的字节数
+    private int groupCount;//块组数
+    private int inodesPerGroup;//每个块组的节点数
+    private int dataBitmapBlocks;//每个块组的数据块位示图占用的块数
+    private int inodeBitmapBlocks;//每个块组的节点位示图占用的块数
+    private int inodeTableBlocks;//每个块组的节点表占用的块数
+    private int groupTableBlock;//块组描述符表开始的块, 没有块组描述符表时为0
+    private int groupTableBlocks;//块组描述符表占用的块数
+    private int dataBlockCount;//数据块总数
+    private int inodeCount;//节点总数
+
+    private int firstGroupBlock;//块组0开始的块
+
+    private Superblock() {
+    }
+
+    //根据卷大小计算布局, 用于格式化. 每个块组的数据块位示图占1块, 能表示 blockSize*8 个数据块
+    public static Superblock create(long sizeBytes, int blockSize, int inodeCount) {
+        return create(sizeBytes, blockSize, inodeCount, DEFAULT_INODE_SIZE);
+    }
+
+    //另外指定节点记录大小, 必须是 128 到块大小之间的2的幂, 这样节点记录不会跨块
+    public static Superblock create(long sizeBytes, int blockSize, int inodeCount, int inodeSize) {
+        if (Integer.bitCount(blockSize) != 1 || blockSize < 1024 || blockSize > 16384) {
+            //目录项记录长度是short, 块太大会溢出
+            throw new IllegalArgumentException("块大小必须是1024到16384之间的2的幂: " + blockSize);
+        }
+        if (Integer.bitCount(inodeSize) != 1 || inodeSize < DEFAULT_INODE_SIZE || inodeSize > blockSize) {
+            throw new IllegalArgumentException("节点大小必须是" + DEFAULT_INODE_SIZE + "到块大小之间的2的幂: " + inodeSize);
+        }
+        long blocks = sizeBytes / blockSize;
+        if (blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("卷太大, 块数超出范围: " + blocks);
+        }
+        if (inodeCount <= 0) {
+            inodeCount = (int) Math.max(16, sizeBytes / DEFAULT_BYTES_PER_INODE);
+        }
+
+        Superblock sb = new Superblock();
+        sb.version = VERSION;
+        sb.blockSize = blockSize;
+        sb.blockCount = (int) blocks;
+        sb.inodeSize = inodeSize;
+        sb.dataBitmapBlocks = 1;
+        sb.inodeBitmapBlocks = 1;
+        sb.groupTableBlock = 1;
+
+        final int bitsPerBlock = blockSize * 8;
+        //块组数, 节点表大小, 块组描述符表大小互相影响, 迭代几次就稳定了
+        int groupCount = Math.max(1, ceilDiv(blocks - 1, 2 + bitsPerBlock));
+        for (int pass = 0; pass < 4; pass++) {
+            sb.groupCount = groupCount;
+            sb.inodeTableBlocks = ceilDiv((long) ceilDiv(inodeCount, groupCount) * sb.inodeSize, blockSize);
+            sb.inodesPerGroup = Math.min(bitsPerBlock, sb.inodeTableBlocks * blockSize / sb.inodeSize);//节点表最后一块剩下的空间也用来放节点
+            sb.inodeTableBlocks = ceilDiv((long) sb.inodesPerGroup * sb.inodeSize, blockSize);
+            sb.groupTableBlocks = ceilDiv((long) groupCount * BlockGroup.SIZE, blockSize);
+            sb.firstGroupBlock = sb.groupTableBlock + sb.groupTableBlocks;
+
+            long available = blocks - sb.firstGroupBlock;
+            int groupBlocks = sb.getGroupBlocks();
+            groupCount = ceilDiv(available, groupBlocks);
+            long lastData = available - (long) (groupCount - 1) * groupBlocks - sb.getGroupMetaBlocks();
+            if (lastData < 1) groupCount--;//最后剩下的空间连元数据都放不下, 不要了
+            if (groupCount < 1) {
+                throw new IllegalArgumentException("卷太小, 放不下元数据");
+            }
+        }
+        sb.groupCount = groupCount;
+        long available = blocks - sb.firstGroupBlock;
+        long lastData = Math.min(bitsPerBlock, available - (long) (groupCount - 1) * sb.getGroupBlocks() - sb.getGroupMetaBlocks());
+        sb.dataBlockCount = (int) ((long) (groupCount - 1) * bitsPerBlock + lastData);
+        sb.inodeCount = groupCount * sb.inodesPerGroup;
+        return sb;
+    }
+
+    //没有超级块的旧磁盘: 256MB, 4KB块, 位示图从第0块开始, 2块数据块位示图, 1块节点位示图, 20块节点表
+    public static Superblock legacy() {
+        Superblock sb = new Superblock();
+        sb.version = 0;
+        sb.blockSize = 4096;
+        sb.blockCount = 65536;
+        sb.inodeSize = LEGACY_INODE_SIZE;
+        sb.groupCount = 1;
+        sb.dataBitmapBlocks = 2;
+        sb.inodeBitmapBlocks = 1;
+        sb.inodeTableBlocks = 20;
+        sb.inodesPerGroup = sb.inodeCount = sb.inodeTableBlocks * sb.blockSize / sb.inodeSize;//1024
+        sb.firstGroupBlock = 0;
+        sb.dataBlockCount = sb.blockCount - sb.getGroupMetaBlocks();
+        return sb;
+    }
+
+    //从磁盘第0块开头的字节中还原超级块, 魔数不对说明是没有超级块的旧磁盘, 返回null
+    public static Superblock fromByteArray(byte array[]) {
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        if (buffer.getInt() != MAGIC) return null;
+        Superblock sb = new Superblock();
+        sb.version = buffer.getInt();
+        if (sb.version == 1) {
+            //版本1: 超级块后面紧接着一个大的块组, 没有块组描述符表
+            sb.blockSize = buffer.getInt();
+            sb.blockCount = buffer.getInt();
+            sb.inodeCount = sb.inodesPerGroup = buffer.getInt();
+            sb.inodeSize = buffer.getInt();
+            buffer.getInt();//数据块位示图开始的块, 总是1
+            sb.dataBitmapBlocks = buffer.getInt();
+            buffer.getInt();
+            sb.inodeBitmapBlocks = buffer.getInt();
+            buffer.getInt();
+            sb.inodeTableBlocks = buffer.getInt();
+            buffer.getInt();
+            sb.dataBlockCount = buffer.getInt();
+            sb.groupCount = 1;
+            sb.firstGroupBlock = 1;
+            return sb;
+        }
+        if (sb.version != VERSION) {
+            throw new IllegalArgumentException("不支持的超级块版本: " + sb.version);
+        }
+        sb.blockSize = buffer.getInt();
+        sb.blockCount = buffer.getInt();
+        sb.inodeSize = buffer.getInt();
+        sb.groupCount = buffer.getInt();
+        sb.inodesPerGroup = buffer.getInt();
+        sb.dataBitmapBlocks = buffer.getInt();
+        sb.inodeBitmapBlocks = buffer.getInt();
+        sb.inodeTableBlocks = buffer.getInt();
+        sb.groupTableBlock = buffer.getInt();
+        sb.groupTableBlocks = buffer.getInt();
+        sb.dataBlockCount = buffer.getInt();
+        sb.inodeCount = buffer.getInt();
+        sb.firstGroupBlock = sb.groupTableBlock + sb.groupTableBlocks;
+        return sb;
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(blockSize);
+        buffer.putInt(blockCount);
+        buffer.putInt(inodeSize);
+        buffer.putInt(groupCount);
+        buffer.putInt(inodesPerGroup);
+        buffer.putInt(dataBitmapBlocks);
+        buffer.putInt(inodeBitmapBlocks);
+        buffer.putInt(inodeTableBlocks);
+        buffer.putInt(groupTableBlock);
+        buffer.putInt(groupTableBlocks);
+        buffer.putInt(dataBlockCount);
+        buffer.putInt(inodeCount);
+        return buffer.array();
+    }
+
+    //按几何参数计算每个块组的位置, 用于格式化和没有块组描述符表的旧磁盘
+    public BlockGroup[] createGroups() {
+        BlockGroup groups[] = new BlockGroup[groupCount];
+        int start = firstGroupBlock;
+        for (int g = 0; g < groupCount; g++) {
+            int dataBlocks = (g == groupCount - 1) ? dataBlockCount - g * getDataBlocksPerGroup() : getDataBlocksPerGroup();
+            int inodeBitmapBlock = start + dataBitmapBlocks;
+            int inodeTableBlock = inodeBitmapBlock + inodeBitmapBlocks;
+            groups[g] = new BlockGroup(g, start, inodeBitmapBlock, inodeTableBlock,
+                    inodeTableBlock + inodeTableBlocks, dataBlocks, inodesPerGroup);
+            start += getGroupBlocks();
+        }
+        return groups;
+    }
+
+    private static int ceilDiv(long a, long b) {
+        return (int) ((a + b - 1) / b);
+    }
+
+    //每个块组开头的元数据占用的块数
+    private int getGroupMetaBlocks() {
+        return dataBitmapBlocks + inodeBitmapBlocks + inodeTableBlocks;
+    }
+
+    //一个完整块组占用的块数
+    private int getGroupBlocks() {
+        return getGroupMetaBlocks() + getDataBlocksPerGroup();
+    }
+
+    //有没有块组描述符表, 旧格式的磁盘只有一个块组, 块组信息由超级块推算出来
+    public boolean hasGroupTable() {
+        return groupTableBlock != 0;
+    }
+
+    public boolean isLegacy() {
+        return version == 0;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public long getSizeBytes() {
+        return (long) blockCount * blockSize;
+    }
+
+    public int getInodeCount() {
+        return inodeCount;
+    }
+
+    public int getInodeSize() {
+        return inodeSize;
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    //每个块组在数据块位示图中占用的位数, 也就是块组之间数据块号的间隔
+    public int getDataBlocksPerGroup() {
+        return dataBitmapBlocks * blockSize * 8;
+    }
+
+    //每个块组在节点位示图中占用的位数, 也就是块组之间节点号的间隔
+    public int getInodeBitsPerGroup() {
+        return inodeBitmapBlocks * blockSize * 8;
+    }
+
+    public int getInodesPerGroup() {
+        return inodesPerGroup;
+    }
+
+    public int getDataBitmapBlocks() {
+        return dataBitmapBlocks;
+    }
+
+    public int getInodeBitmapBlocks() {
+        return inodeBitmapBlocks;
+    }
+
+    public int getFirstGroupBlock() {
+        return firstGroupBlock;
+    }
+
+    public int getGroupTableBlock() {
+        return groupTableBlock;
+    }
+
+    public int getDataBlockCount() {
+        return dataBlockCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("块大小: %d 字节, 块数: %d, 卷大小: %d MB, 节点数: %d, 数据块数: %d%n" +
+                        "块组数: %d, 每组数据块: %d, 每组节点: %d, 每组节点表: %d块%s",
+                blockSize, blockCount, getSizeBytes() / 1024 / 1024, inodeCount, dataBlockCount,
+                groupCount, getDataBlocksPerGroup(), inodesPerGroup, inodeTableBlocks,
+                isLegacy() ? " (旧格式, 无超级块)" : version == 1 ? " (版本1, 无块组描述符表)" : "");
+    }
+}
@@ -1,7 +1,640 @@
 package ext2;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+//文件系统的自检, 全部在内存磁盘上做, 不碰 disk.bin; 任何一项不对就抛出 AssertionError
+//运行: java -cp build/classes:lib/* ext2.Tests
 public class Tests {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        testImages();
+        testFileBoundaries(false);
+        testFileBoundaries(true);
+        testGoalAllocation(false);
+        testGoalAllocation(true);
+        testDirectoryGrowth(false);
+        testDirectoryGrowth(true);
+        testReaddir(false);
+        testReaddir(true);
+        testWriteChannel(0);
+        testWriteChannel(1);
+        testWriteChannel(2);
+        testWriteChannelFull(0);
+        testWriteChannelFull(1);
+        testWriteChannelFull(2);
+        testWriteChannelSizeLimit();
+        testStreamContiguous(false);
+        testStreamContiguous(true);
+        testIndexedDirectoryDots();
+        testIndexFull();
+        System.out.println("全部通过");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    //新建一个内存磁盘并格式化, inodeCount 为0时按磁盘大小计算节点数
+    private static FileSystem newFileSystem(int sizeMB, int blockSize, int inodeCount, int inodeSize, MountOptions options) throws IOException {
+        FileSystem fs = new FileSystem(ByteBufferBlockDevice.allocateDirect(sizeMB * 1024 * 1024, blockSize), options);
+        fs.format(blockSize, inodeCount, inodeSize);
+        return fs;
+    }
+
+    //按 seed 生成 length 个小写字母, 用作文件内容
+    private static String text(int length, int seed) {
+        Random random = new Random(seed);
+        char chars[] = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static void checkContent(FileSystem fs, String name, String expected) throws IOException {
+        byte content[] = fs.readFile(name);
+        check(content != null && new String(content).equals(expected), "文件内容不对: " + name);
+    }
+
+    //重新挂载同一个设备, 所有内容都从磁盘读
+    private static FileSystem remount(FileSystem fs, MountOptions options) throws IOException {
+        fs.sync();
+        FileSystem mounted = new FileSystem(fs.getDevice(), options);
+        mounted.load();
+        return mounted;
+    }
+
+    //手工写一个旧版本格式化出来的空磁盘: 位示图只有根目录的节点1和数据块1, 节点表里只有根目录(80字节的记录), 根目录块里只有 . 和 ..
+    //版本0没有超级块, 用固定布局(256MB, 4KB块); 版本1的超级块后面是一个大的块组, 没有块组描述符表
+    private static BlockDevice oldImage(int version) throws IOException {
+        int blockSize, dataBitmapBlock, inodeBitmapBlock, inodeTableBlock, firstDataBlock;
+        BlockDevice device;
+        byte dataBitmap[], inodeBitmap[];
+        if (version == 0) {
+            blockSize = 4096;
+            device = ByteBufferBlockDevice.allocateDirect(256 * 1024 * 1024, blockSize);
+            dataBitmapBlock = 0;//2块
+            inodeBitmapBlock = 2;
+            inodeTableBlock = 3;//20块
+            firstDataBlock = 23;
+            dataBitmap = new byte[1];
+            inodeBitmap = new byte[1];
+        } else {
+            blockSize = 1024;//8MB, 512个节点: 超级块 | 数据块位示图1块 | 节点位示图1块 | 节点表40块 | 8149个数据块
+            device = ByteBufferBlockDevice.allocateDirect(8 * 1024 * 1024, blockSize);
+            dataBitmapBlock = 1;
+            inodeBitmapBlock = 2;
+            inodeTableBlock = 3;
+            firstDataBlock = 43;
+            ByteBuffer superblock = ByteBuffer.allocate(Superblock.SIZE);
+            for (int field : new int[]{Superblock.MAGIC, 1, blockSize, 8192, 512, Superblock.LEGACY_INODE_SIZE,
+                    dataBitmapBlock, 1, inodeBitmapBlock, 1, inodeTableBlock, 40, firstDataBlock, 8149}) {
+                superblock.putInt(field);
+            }
+            superblock.flip();
+            device.write(0, superblock);
+            dataBitmap = new byte[blockSize];//版本1把位示图块中超出数据块数和节点数的位都置为占用
+            inodeBitmap = new byte[blockSize];
+            setBits(dataBitmap, 8149 + 1, blockSize * 8);
+            setBits(inodeBitmap, 512 + 1, blockSize * 8);
+        }
+        setBits(dataBitmap, 1, 1);//数据块1
+        setBits(inodeBitmap, 1, 1);//节点1
+        device.write((long) dataBitmapBlock * blockSize, ByteBuffer.wrap(dataBitmap));
+        device.write((long) inodeBitmapBlock * blockSize, ByteBuffer.wrap(inodeBitmap));
+
+        Inode root = new Inode(FileSystem.ROOT_INODE, Inode.DIRECTORY);
+        root.addBlocks(1);
+        ByteBuffer record = ByteBuffer.allocate(Superblock.LEGACY_INODE_SIZE);
+        root.writeTo(record, 0, record.capacity());
+        device.write((long) inodeTableBlock * blockSize, record);
+
+        DirectoryBlock block = new DirectoryBlock(1, blockSize);
+        DirectoryEntry self = new DirectoryEntry(FileSystem.ROOT_INODE, DirectoryEntry.DIRECTORY, ".");
+        DirectoryEntry parent = new DirectoryEntry(FileSystem.ROOT_INODE, DirectoryEntry.DIRECTORY, "..");
+        block.addEntry(self);
+        block.addEntry(parent);
+        ByteBuffer entries = ByteBuffer.allocate(blockSize);
+        parent.writeTo(entries, self.writeTo(entries, 0));
+        device.write((long) firstDataBlock * blockSize, entries);
+        return device;
+    }
+
+    //把位示图中第 from 到 to 位(从1开始, 都包含)置为1, 字节内从高位到低位
+    private static void setBits(byte bitmap[], int from, int to) {
+        for (int k = from; k <= to; k++) {
+            bitmap[(k - 1) / 8] |= 0x80 >>> ((k - 1) % 8);
+        }
+    }
+
+    //版本0, 1 的旧磁盘和当前格式的磁盘: 载入, 写文件(跨过直接指针), 建目录, 追加, 重新挂载后读回, 删除后空闲数复原
+    private static void testImages() throws IOException {
+        for (int version = 0; version <= Superblock.VERSION; version++) {
+            FileSystem fs;
+            if (version < Superblock.VERSION) {
+                fs = new FileSystem(oldImage(version));
+                fs.load();
+            } else {
+                fs = remount(newFileSystem(16, 1024, 0, Superblock.DEFAULT_INODE_SIZE, new MountOptions()), new MountOptions());
+            }
+            Superblock superblock = fs.getSuperblock();
+            check(superblock.isLegacy() == (version == 0), "版本" + version + ": isLegacy");
+            check(superblock.hasGroupTable() == (version == Superblock.VERSION), "版本" + version + ": 块组描述符表");
+            int blockSize = superblock.getBlockSize();
+            int freeBlocks = fs.getFreeBlockCount(), freeInodes = fs.getFreeInodeCount();
+
+            String small = text(100, 1), large = text((Inode.POINTER_COUNT + 1) * blockSize + 5, 2), tail = text(3 * blockSize, 3);
+            fs.writeFile("small", small);
+            fs.writeFile("large", large);//要一个一级间接块
+            fs.append("small", tail);
+            fs.writeDirectory("dir");
+            fs.goToDirectory("dir");
+            fs.writeFile("inner", small);
+
+            fs = remount(fs, new MountOptions());
+            checkContent(fs, "small", small + tail);
+            checkContent(fs, "large", large);
+            check(fs.findEntry("dir/inner") != null, "版本" + version + ": dir/inner");
+            fs.goToDirectory("dir");
+            checkContent(fs, "inner", small);
+            check(fs.removeEntry("inner"), "删除 dir/inner");
+            fs.setCurrentDirectory(fs.getRoot());
+            for (String name : new String[]{"small", "large", "dir"}) {
+                check(fs.removeEntry(name), "删除 " + name);
+            }
+            check(fs.getFreeBlockCount() == freeBlocks && fs.getFreeInodeCount() == freeInodes, "版本" + version + ": 删除后空闲数应该复原");
+            fs = remount(fs, new MountOptions());
+            check(fs.getFreeBlockCount() == freeBlocks && fs.getFreeInodeCount() == freeInodes, "版本" + version + ": 重新挂载后空闲数");
+        }
+        System.out.println("版本0, 1, 2 的磁盘载入和读写: 通过");
+    }
+
+    //用 seed 生成的 length 个随机字节写文件(经过写通道, 不用在内存里放整个文件), 返回内容的 CRC
+    private static long writeRandom(FileWriteChannel channel, long length, int seed) throws IOException {
+        Random random = new Random(seed);
+        CRC32 crc = new CRC32();
+        byte chunk[] = new byte[65536];
+        for (long written = 0; written < length; written += chunk.length) {
+            random.nextBytes(chunk);
+            int n = (int) Math.min(chunk.length, length - written);
+            crc.update(chunk, 0, n);
+            channel.write(ByteBuffer.wrap(chunk, 0, n));
+        }
+        channel.close();
+        return crc.getValue();
+    }
+
+    private static long crc(byte content[]) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    //1KB的块, 每个间接块256个块号: 指针模式下文件大小正好落在直接指针, 一级, 二级间接块的末尾和下一级的开头;
+    //区段模式下两个文件交替追加, 区段越来越碎, 区段树从节点里的4项长到一层, 两层区段块
+    private static void testFileBoundaries(boolean extents) throws IOException {
+        MountOptions options = new MountOptions().setExtents(extents);
+        FileSystem fs = newFileSystem(80, 1024, 0, Superblock.DEFAULT_INODE_SIZE, options);
+        int freeBlocks = fs.getFreeBlockCount();
+        int p = 1024 / 4, direct = Inode.POINTER_COUNT;
+        int boundaries[] = {direct, direct + p, direct + p + p * p};//直接指针, 一级, 二级间接块能放的块数
+        for (int blocks : boundaries) {
+            for (int delta = 0; delta <= 1; delta++) {
+                String name = "f" + blocks + "_" + delta;
+                long size = (long) (blocks + delta) * 1024 - (delta == 0 ? 0 : 1023);//正好写满, 或者下一级多出1个字节
+                long expected = writeRandom(fs.openForWrite(name), size, blocks + delta);
+                byte content[] = fs.readFile(name);
+                check(content.length == size && crc(content) == expected, "文件内容不对: " + name);
+                if (blocks > direct + p) {//大文件读完就删, 磁盘放不下两个
+                    check(fs.removeEntry(name), "删除 " + name);
+                }
+            }
+        }
+
+        //追加跨过一级到二级间接块的边界
+        String head = text((direct + p) * 1024 - 10, 1), tail = text(3 * 1024, 2);
+        fs.writeFile("appended", head);
+        fs.append("appended", tail);
+        checkContent(fs, "appended", head + tail);
+
+        //两个文件交替追加一块, 块号不连续, 每块一个区段
+        StringBuilder a = new StringBuilder(), b = new StringBuilder();
+        fs.writeFile("a", "");
+        fs.writeFile("b", "");
+        boolean depths[] = new boolean[3];
+        for (int i = 0; i < 400; i++) {
+            String blockA = text(1024, i), blockB = text(1024, -i);
+            fs.append("a", blockA);
+            fs.append("b", blockB);
+            a.append(blockA);
+            b.append(blockB);
+            if (extents) depths[fs.getInodeTable().get(fs.findEntry("a").getInode()).getExtentDepth()] = true;
+        }
+        if (extents) check(depths[0] && depths[1] && depths[2], "区段树应该经过0, 1, 2层");
+
+        fs = remount(fs, options);
+        for (int delta = 0; delta <= 1; delta++) {
+            for (int blocks : new int[]{direct, direct + p}) {
+                byte content[] = fs.readFile("f" + blocks + "_" + delta);
+                check(content != null && content.length == (long) (blocks + delta) * 1024 - (delta == 0 ? 0 : 1023), "重新挂载后的文件大小");
+            }
+        }
+        checkContent(fs, "appended", head + tail);
+        checkContent(fs, "a", a.toString());
+        checkContent(fs, "b", b.toString());
+        for (String name : new String[]{"f12_0", "f12_1", "f268_0", "f268_1", "appended", "a", "b"}) {
+            check(fs.removeEntry(name), "删除 " + name);
+        }
+        check(fs.getFreeBlockCount() == freeBlocks, "删除后数据块和间接块都应该还回来");
+        System.out.println((extents ? "区段模式" : "指针模式") + "的文件跨过各级边界: 通过");
+    }
+
+    //写 count 个正好一块的文件, 再删掉其中一半, 留下 count/2 个一块的空洞, 后面是大片的空闲块
+    private static void fragment(FileSystem fs, int count) throws IOException {
+        int blockSize = fs.getSuperblock().getBlockSize();
+        for (int i = 0; i < count; i++) {
+            fs.writeFile("frag" + i, text(blockSize, i));
+        }
+        for (int i = 0; i < count; i += 2) {
+            check(fs.removeEntry("frag" + i), "删除 frag" + i);
+        }
+    }
+
+    //当前目录中的文件的数据块按块号分成几段连续的块
+    private static int runs(FileSystem fs, String name) throws IOException {
+        Inode inode = fs.getInodeTable().get(fs.findEntry(name).getInode());
+        int count = (inode.getSize() + fs.getSuperblock().getBlockSize() - 1) / fs.getSuperblock().getBlockSize();
+        int runs = 0;
+        for (int i = 0, previous = 0; i < count; i++) {
+            int block = fs.mapBlock(inode, i);
+            if (block != previous + 1) runs++;
+            previous = block;
+        }
+        return runs;
+    }
+
+    //有很多一块的空洞时, 每次追加一块仍然接在文件最后一块后面, 不去填最小的空洞; 指针模式下间接块紧跟在它前面的数据块后面
+    private static void testGoalAllocation(boolean extents) throws IOException {
+        MountOptions options = new MountOptions().setExtents(extents);
+        FileSystem fs = newFileSystem(16, 1024, 0, Superblock.DEFAULT_INODE_SIZE, options);
+        fragment(fs, 300);
+        int freeBlocks = fs.getFreeBlockCount();//根目录长大用的块不会还回来, 从这里算
+        String content = text(3 * 1024, 1);
+        fs.writeFile("grow", content);
+        for (int i = 0; i < 20; i++) {
+            String block = text(1024, i + 2);
+            fs.append("grow", block);
+            content += block;
+        }
+        checkContent(fs, "grow", content);
+        Inode inode = fs.getInodeTable().get(fs.findEntry("grow").getInode());
+        if (extents) {
+            check(runs(fs, "grow") == 1 && inode.getExtentDepth() == 0 && inode.getExtentField(1, 2) == 0, "追加的块应该接成一个区段");
+        } else {
+            check(runs(fs, "grow") == 2, "追加的块应该只被间接块隔开一次");
+            check(inode.getIndirectPointer(1) == fs.mapBlock(inode, Inode.POINTER_COUNT) + 1, "间接块应该紧跟在第13块后面");
+        }
+        for (int i = 1; i < 300; i += 2) {
+            check(fs.removeEntry("frag" + i), "删除 frag" + i);
+        }
+        check(fs.removeEntry("grow"), "删除 grow");
+        check(fs.getFreeBlockCount() == freeBlocks + 150, "删除后空间应该全部还回来");
+        System.out.println((extents ? "区段模式" : "指针模式") + "的追加接在文件末尾: 通过");
+    }
+
+    //目录长大: 用 -dirindex 时从一块的普通目录改为有索引的目录, 否则一直是普通目录(超过12块后用间接块)
+    //添加后每个名字都能找到, 删掉一半后被删的找不到, 剩下的还在; 普通目录整理后块变少; 重新挂载后结果一样, 全删后空间全部还回来
+    private static void testDirectoryGrowth(boolean dirIndex) throws IOException {
+        MountOptions options = new MountOptions().setDirIndex(dirIndex);
+        FileSystem fs = newFileSystem(16, 1024, 8192, Superblock.DEFAULT_INODE_SIZE, options);
+        int freeBlocks = fs.getFreeBlockCount(), freeInodes = fs.getFreeInodeCount();
+        final int count = 3000;
+        fs.writeDirectory("big");
+        fs.goToDirectory("big");
+        int big = fs.getCurrentDirectory().getInode();
+        for (int i = 0; i < count; i++) {
+            fs.writeFile("entry" + i, "");
+        }
+        check((fs.getCurrentDirectory().getIndex() != null) == dirIndex, "目录是否有索引");
+        check(fs.getCurrentDirectory().size() > Inode.POINTER_COUNT, "目录应该超过12块");
+
+        fs = remount(fs, options);
+        for (int i = 0; i < count; i++) {
+            DirectoryEntry entry = fs.lookup(big, "entry" + i);
+            check(entry != null && entry.getType() == DirectoryEntry.FILE, "找不到 entry" + i);
+        }
+        check(fs.lookup(big, "entry" + count) == null, "不存在的名字");
+        check(fs.lookup(big, "..").getInode() == FileSystem.ROOT_INODE, "lookup(big, ..)");
+
+        fs.goToDirectory("big");
+        for (int i = 0; i < count; i += 2) {
+            check(fs.removeEntry("entry" + i), "删除 entry" + i);
+        }
+        for (int i = 0; i < count; i++) {
+            check((fs.lookup(big, "entry" + i) == null) == (i % 2 == 0), "删除一半后 entry" + i);
+        }
+        int blocksBefore = fs.getCurrentDirectory().size();
+        String compacted = fs.compactDirectory();
+        if (!dirIndex) {
+            check(fs.getCurrentDirectory().size() < blocksBefore, "整理后目录块应该变少: " + compacted);
+        }
+
+        fs = remount(fs, options);
+        for (int i = 0; i < count; i++) {
+            check((fs.lookup(big, "entry" + i) == null) == (i % 2 == 0), "重新挂载后 entry" + i);
+        }
+        fs.goToDirectory("big");
+        for (int i = 1; i < count; i += 2) {
+            check(fs.removeEntry("entry" + i), "删除 entry" + i);
+        }
+        fs.setCurrentDirectory(fs.getRoot());
+        check(fs.removeEntry("big"), "删除空目录 big");
+        check(fs.getFreeBlockCount() == freeBlocks && fs.getFreeInodeCount() == freeInodes, "全删后空间应该全部还回来");
+        System.out.println((dirIndex ? "有索引" : "普通") + "目录的添加, 查找, 删除和整理: 通过");
+    }
+
+    //用 readdir 每次最多读 limit 项, 拿返回的 cookie 接着读, 直到读完
+    private static List<String> readdirAll(FileSystem fs, int dir, int limit) throws IOException {
+        List<String> names = new ArrayList<>();
+        long cookie = 0;
+        do {
+            int before = names.size();
+            cookie = fs.readdir(dir, cookie, limit, cursor -> names.add(cursor.getFilename()));
+            check(names.size() - before <= limit, "一页超过 limit 项");
+        } while (cookie != -1);
+        return names;
+    }
+
+    //分页读出的目录项和一次读完的完全一样(顺序也一样); 两页之间删除目录项, 接着读时不会重复, 删掉的还没读到的不会出现
+    private static void testReaddir(boolean dirIndex) throws IOException {
+        FileSystem fs = newFileSystem(16, 1024, 4096, Superblock.DEFAULT_INODE_SIZE, new MountOptions().setDirIndex(dirIndex));
+        fs.writeDirectory("list");
+        fs.goToDirectory("list");
+        int list = fs.getCurrentDirectory().getInode();
+        final int count = 1000;
+        for (int i = 0; i < count; i++) {
+            fs.writeFile("name" + i, "");
+        }
+        List<String> all = readdirAll(fs, list, Integer.MAX_VALUE);
+        check(all.size() == count + 2 && all.contains(".") && all.contains(".."), "readdir 应该读出全部目录项和 . ..");
+        check(new HashSet<>(all).size() == all.size(), "readdir 读出了重复的目录项");
+        for (int limit : new int[]{1, 7, 256}) {
+            check(readdirAll(fs, list, limit).equals(all), "每页 " + limit + " 项时读出的不一样");
+        }
+
+        List<String> seen = new ArrayList<>();
+        long cookie = fs.readdir(list, 0, count / 2, cursor -> seen.add(cursor.getFilename()));
+        String read = seen.get(seen.size() - 1), unread = all.get(all.size() - 1);
+        fs.removeEntry(read.equals(".") || read.equals("..") ? seen.get(2) : read);
+        fs.removeEntry(unread);
+        while (cookie != -1) {
+            cookie = fs.readdir(list, cookie, 100, cursor -> seen.add(cursor.getFilename()));
+        }
+        check(new HashSet<>(seen).size() == seen.size(), "删除后接着读出了重复的目录项");
+        check(!seen.contains(unread), "删掉的还没读到的目录项不应该出现");
+        Set<String> expected = new HashSet<>(all);
+        expected.remove(unread);
+        check(expected.containsAll(seen) && seen.size() == count + 1, "删除后接着读出的目录项不对");
+        System.out.println((dirIndex ? "有索引" : "普通") + "目录的分页 readdir: 通过");
+    }
+
+    //写通道测试用的8MB, 1KB块的磁盘; mode 0: 版本1的旧磁盘(80字节的节点, 不能内嵌), 1: 指针模式, 2: 区段模式
+    private static FileSystem channelFileSystem(int mode) throws IOException {
+        MountOptions options = new MountOptions().setExtents(mode == 2);
+        if (mode == 0) {
+            FileSystem fs = new FileSystem(oldImage(1), options);
+            fs.load();
+            return fs;
+        }
+        return newFileSystem(8, 1024, 0, 256, options);
+    }
+
+    //写通道: 各种长度的写跨过内嵌数据的上限和块边界, 接着在没对齐的文件后面追加, 包成 OutputStream 再写; 删除后空间全部还回来
+    private static void testWriteChannel(int mode) throws IOException {
+        MountOptions options = new MountOptions().setExtents(mode == 2);
+        FileSystem fs = channelFileSystem(mode);
+        int freeBlocks = fs.getFreeBlockCount(), freeInodes = fs.getFreeInodeCount();
+        StringBuilder expected = new StringBuilder();
+        FileWriteChannel channel = fs.openForWrite("stream");
+        int seed = 0;
+        for (int length : new int[]{1, 47, 48, 49, 100, 1023, 1024, 1025, 3000, 0, 7}) {
+            String chunk = text(length, seed++);
+            check(channel.write(ByteBuffer.wrap(chunk.getBytes())) == length, "write 的返回值");
+            expected.append(chunk);
+        }
+        channel.close();
+        check(!channel.isOpen(), "关闭后 isOpen");
+        try {
+            channel.write(ByteBuffer.wrap(new byte[1]));
+            check(false, "关闭后还能写");
+        } catch (ClosedChannelException expectedException) {
+        }
+        checkContent(fs, "stream", expected.toString());
+
+        check(fs.openForAppend("missing") == null, "不存在的文件 openForAppend 应该返回 null");
+        channel = fs.openForAppend("stream");
+        for (int length : new int[]{5, 1019, 2048, 333}) {//文件末尾没有对齐到块, 先补满最后一块
+            String chunk = text(length, seed++);
+            channel.write(ByteBuffer.wrap(chunk.getBytes()));
+            expected.append(chunk);
+        }
+        channel.close();
+        try (OutputStream out = Channels.newOutputStream(fs.openForAppend("stream"))) {
+            String chunk = text(5000, seed++);
+            out.write(chunk.getBytes());
+            expected.append(chunk);
+        }
+        fs = remount(fs, options);
+        checkContent(fs, "stream", expected.toString());
+        check(fs.removeEntry("stream"), "删除 stream");
+        check(fs.getFreeBlockCount() == freeBlocks && fs.getFreeInodeCount() == freeInodes, "删除后空间应该全部还回来");
+        System.out.println(new String[]{"版本1的旧磁盘", "指针模式", "区段模式"}[mode] + "的写通道: 通过");
+    }
+
+    //用写通道写满磁盘: 每个文件不超过旧磁盘的文件大小上限, 一直写到抛出 NoSpaceException;
+    //之前的文件完整, 最后一个文件保留的是写入内容的开头, 删除后空间全部还回来
+    private static void testWriteChannelFull(int mode) throws IOException {
+        FileSystem fs = channelFileSystem(mode);
+        int freeBlocks = fs.getFreeBlockCount(), freeInodes = fs.getFreeInodeCount();
+        List<String> contents = new ArrayList<>();
+        boolean full = false;
+        for (int seed = 0; !full; ) {
+            FileWriteChannel channel = fs.openForWrite("full" + contents.size());
+            StringBuilder content = new StringBuilder();
+            try {
+                for (int k = 0; k < 50; k++) {//50 * 4000 字节, 小于旧磁盘的 (12 + 256) * 1024 字节
+                    String chunk = text(4000, seed++);
+                    content.append(chunk);//这一次可能只写下去一部分
+                    channel.write(ByteBuffer.wrap(chunk.getBytes()));
+                }
+            } catch (NoSpaceException noSpace) {
+                full = true;
+            }
+            try {
+                channel.close();
+            } catch (NoSpaceException noSpace) {
+                full = true;
+            }
+            contents.add(content.toString());
+        }
+        check(contents.size() > 1, "磁盘应该写下不止一个文件");
+
+        fs = remount(fs, new MountOptions());
+        for (int i = 0; i < contents.size(); i++) {
+            byte content[] = fs.readFile("full" + i);
+            if (i < contents.size() - 1) {
+                check(new String(content).equals(contents.get(i)), "写满之前的文件内容不对: full" + i);
+            } else {
+                check(contents.get(i).startsWith(new String(content)), "空间不够时保留的内容不对");
+            }
+            check(fs.removeEntry("full" + i), "删除 full" + i);
+        }
+        check(fs.getFreeBlockCount() == freeBlocks && fs.getFreeInodeCount() == freeInodes, "删除后空间应该全部还回来");
+        System.out.println(new String[]{"版本1的旧磁盘", "指针模式", "区段模式"}[mode] + "的写通道写满磁盘: 通过");
+    }
+
+    //旧磁盘的文件最多 12 + 256 块: 用写通道写过这个大小时抛出 IllegalArgumentException, 文件保留正好上限那么多的内容
+    private static void testWriteChannelSizeLimit() throws IOException {
+        FileSystem fs = channelFileSystem(0);
+        int freeBlocks = fs.getFreeBlockCount();
+        int limit = (Inode.POINTER_COUNT + 1024 / 4) * 1024;
+        String content = text(limit + 1024, 1);
+        FileWriteChannel channel = fs.openForWrite("limit");
+        try {
+            channel.write(ByteBuffer.wrap(content.getBytes()));
+            check(false, "超过文件大小上限还能写");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            channel.close();//缓冲区里还有写不下的一块
+            check(false, "关闭时超过文件大小上限的内容应该仍然写不下");
+        } catch (IllegalArgumentException expected) {
+        }
+        check(fs.getFreeBlockCount() == freeBlocks - (limit / 1024 + 1), "应该只用了上限的数据块和一个间接块");
+        fs = remount(fs, new MountOptions());
+        checkContent(fs, "limit", content.substring(0, limit));
+        check(fs.removeEntry("limit") && fs.getFreeBlockCount() == freeBlocks, "删除后空间应该全部还回来");
+        System.out.println("版本1的旧磁盘上写通道的文件大小上限: 通过");
+    }
+
+    //在有很多一块空洞的磁盘上用写通道写文件: 文件从最长的空闲区间开始放, 一直连续(指针模式只被间接块隔开一次)
+    //两个通道交替写时块号不连续, 区段模式下区段表在通道里攒着, 关闭时才写区段树, 重新挂载后内容不变
+    private static void testStreamContiguous(boolean extents) throws IOException {
+        MountOptions options = new MountOptions().setExtents(extents);
+        FileSystem fs = newFileSystem(16, 1024, 0, Superblock.DEFAULT_INODE_SIZE, options);
+        fragment(fs, 300);
+        int freeBlocks = fs.getFreeBlockCount();
+        FileWriteChannel channel = fs.openForWrite("stream");
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            String chunk = text(1000 + i, i);
+            channel.write(ByteBuffer.wrap(chunk.getBytes()));
+            content.append(chunk);
+        }
+        channel.close();
+        checkContent(fs, "stream", content.toString());
+        check(runs(fs, "stream") == (extents ? 1 : 2), "写通道写的文件应该是连续的: " + runs(fs, "stream") + " 段");
+
+        FileWriteChannel a = fs.openForWrite("a"), b = fs.openForWrite("b");
+        StringBuilder contentA = new StringBuilder(), contentB = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            String chunkA = text(1024, 2 * i), chunkB = text(1024, 2 * i + 1);
+            a.write(ByteBuffer.wrap(chunkA.getBytes()));
+            b.write(ByteBuffer.wrap(chunkB.getBytes()));
+            contentA.append(chunkA);
+            contentB.append(chunkB);
+        }
+        a.close();
+        b.close();
+        check(runs(fs, "a") > Inode.EXTENT_SLOTS, "交替写的文件应该分成很多段");
+        if (extents) check(fs.getInodeTable().get(fs.findEntry("a").getInode()).getExtentDepth() > 0, "区段树应该用到区段块");
+
+        fs = remount(fs, options);
+        checkContent(fs, "stream", content.toString());
+        checkContent(fs, "a", contentA.toString());
+        checkContent(fs, "b", contentB.toString());
+        for (int i = 1; i < 300; i += 2) {
+            check(fs.removeEntry("frag" + i), "删除 frag" + i);
+        }
+        check(fs.removeEntry("stream") && fs.removeEntry("a") && fs.removeEntry("b"), "删除");
+        check(fs.getFreeBlockCount() == freeBlocks + 150, "删除后空间应该全部还回来");
+        System.out.println((extents ? "区段模式" : "指针模式") + "下写通道写的文件连续: 通过");
+    }
+
+    //有索引的目录中 . 和 .. 在索引根里, 仍然要能找到: cd .. 能回到上一级, 不能再建名为 .. 的目录, 也不能删除
+    private static void testIndexedDirectoryDots() throws IOException {
+        FileSystem fs = newFileSystem(16, 1024, 0, 128, new MountOptions().setDirIndex(true));
+        fs.writeDirectory("sub");
+        fs.goToDirectory("sub");
+        int sub = fs.getCurrentDirectory().getInode();
+        for (int i = 0; i < 200; i++) {
+            fs.writeFile("file" + i, "");
+        }
+        check(fs.getCurrentDirectory().getIndex() != null, "200个文件后目录应该有索引");
+        check(fs.getInodeTable().get(sub).hasFlag(Inode.INDEX_FLAG), "节点上应该有索引标志");
+
+        check(fs.lookup(sub, ".") != null && fs.lookup(sub, ".").getInode() == sub, "lookup(sub, .)");
+        check(fs.lookup(sub, "..") != null && fs.lookup(sub, "..").getInode() == FileSystem.ROOT_INODE, "lookup(sub, ..)");
+        check(fs.getCurrentDirectory().findEntry("..") != null, "Directory.findEntry(..)");
+        check(!fs.removeEntry(".."), "不能删除 ..");
+        try {
+            fs.writeDirectory("..");
+            check(false, "mkdir .. 应该因为重名失败");
+        } catch (IllegalArgumentException expected) {
+        }
+        check(fs.lookup(sub, "..").getInode() == FileSystem.ROOT_INODE, "mkdir .. 之后 .. 仍然指向根目录");
+
+        //重新挂载, 缓存是空的, 不在当前目录时要从磁盘上的索引根块找到 ..
+        fs.sync();
+        FileSystem mounted = new FileSystem(fs.getDevice(), new MountOptions().setDirIndex(true));
+        mounted.load();
+        check(mounted.lookup(sub, "..").getInode() == FileSystem.ROOT_INODE, "重新挂载后 lookup(sub, ..)");
+        Shell shell = new Shell(mounted);
+        shell.cd("/sub");
+        check(mounted.getCurrentDirectory().getInode() == sub, "cd /sub");
+        shell.cd("..");
+        check(mounted.getCurrentDirectory().getInode() == FileSystem.ROOT_INODE, "cd .. 应该回到根目录");
+        check(mounted.findEntry("sub/file199") != null, "索引目录中的文件");
+        System.out.println("有索引的目录中的 . 和 ..: 通过");
+    }
+
+    //索引满了以后, 添加失败的目录项不能占着节点和数据块
+    private static void testIndexFull() throws IOException {
+        FileSystem fs = newFileSystem(128, 1024, 65536, 128, new MountOptions().setDirIndex(true));
+        String prefix = new String(new char[190]).replace('\0', 'n');//长文件名, 叶子块很快分满
+        int count = 0;
+        try {
+            for (; ; count++) {
+                fs.writeFile(prefix + count, "");
+            }
+        } catch (IllegalArgumentException full) {
+            check(full.getMessage().contains("索引已满"), "应该是索引已满: " + full.getMessage());
+        }
+        int failures = 0;
+        for (int i = 1; i <= 50; i++) {
+            for (int op = 0; op < 3; op++) {
+                int freeBlocks = fs.getFreeBlockCount(), freeInodes = fs.getFreeInodeCount();
+                try {
+                    if (op == 0) fs.writeFile(prefix + (count + i), "x");
+                    else if (op == 1) fs.writeFile(prefix + (count + i) + "b", new String(new char[5000]));
+                    else fs.writeDirectory(prefix + (count + i) + "d");
+                } catch (IllegalArgumentException full) {
+                    failures++;
+                    check(freeBlocks == fs.getFreeBlockCount() && freeInodes == fs.getFreeInodeCount(), "添加失败后空闲块数和节点数应该不变");
+                }
+            }
+        }
+        check(failures > 0, "索引满了以后应该有添加失败的目录项");
+        System.out.println("索引已满时添加目录项: 通过");
     }
 }